@@ -1,42 +1,81 @@
 package net.jextra.tucker.encoder;
 
+import java.util.*;
+
 public class Encoder
 {
+    // Entity (or hex reference) of each char that must be encoded, indexed by the char. Built once from Html4EntityMap so encoding
+    // does not create a String and a map lookup per char.
+    private static final String[] HTML_ESCAPES;
 
-    public static String encodeForHtml( String input )
+    static
     {
-        if ( input != null && !input.isEmpty() )
+        int max = '\377';
+        for ( CharSequence key : Html4EntityMap.ESCAPE.keySet() )
         {
-            StringBuilder out = new StringBuilder();
-
-            for ( int i = 0; i < input.length(); i++ )
-            {
-                char c = input.charAt( i );
-                CharSequence s = c + "";
+            max = Math.max( max, key.charAt( 0 ) );
+        }
 
-                if ( Html4EntityMap.ESCAPE.containsKey( s ) )
-                {
-                    out.append( Html4EntityMap.ESCAPE.get( s ) );
-                }
-                else if ( c >= '\200' && c < '\377' )
-                {
-                    String hexChars = "0123456789ABCDEF";
-                    int a = c % 16;
-                    int b = ( c - a ) / 16;
-                    out.append( "&#x" ).append( hexChars.charAt( b ) ).append( hexChars.charAt( a ) ).append( ';' );
-                }
-                else
-                {
-                    out.append( c );
-                }
-            }
+        HTML_ESCAPES = new String[max + 1];
+        String hexChars = "0123456789ABCDEF";
+        for ( char c = '\200'; c < '\377'; c++ )
+        {
+            int a = c % 16;
+            int b = ( c - a ) / 16;
+            HTML_ESCAPES[c] = "&#x" + hexChars.charAt( b ) + hexChars.charAt( a ) + ';';
+        }
+        for ( Map.Entry<CharSequence, CharSequence> entry : Html4EntityMap.ESCAPE.entrySet() )
+        {
+            HTML_ESCAPES[entry.getKey().charAt( 0 )] = entry.getValue().toString();
+        }
+    }
 
-            return out.toString();
+    /**
+     * @return the input itself when nothing in it needs encoding.
+     */
+    public static String encodeForHtml( String input )
+    {
+        if ( input == null || input.isEmpty() )
+        {
+            return input;
         }
-        else
+
+        int start = indexOfHtmlEscape( input );
+        if ( start < 0 )
         {
             return input;
         }
+
+        StringBuilder out = new StringBuilder( input.length() + 16 );
+        out.append( input, 0, start );
+        encodeForHtml( input, start, out );
+
+        return out.toString();
+    }
+
+    /**
+     * Append the encoded input to the builder.
+     */
+    public static void encodeForHtml( CharSequence input, StringBuilder out )
+    {
+        encodeForHtml( input, 0, out );
+    }
+
+    /**
+     * @return index of the first char that needs encoding or -1 if there is none.
+     */
+    public static int indexOfHtmlEscape( CharSequence input )
+    {
+        for ( int i = 0; i < input.length(); i++ )
+        {
+            char c = input.charAt( i );
+            if ( c < HTML_ESCAPES.length && HTML_ESCAPES[c] != null )
+            {
+                return i;
+            }
+        }
+
+        return -1;
     }
 
     public static String decodeForHtml( String input )
@@ -92,4 +131,21 @@ public class Encoder
         }
         return true;
     }
+
+    private static void encodeForHtml( CharSequence input, int start, StringBuilder out )
+    {
+        for ( int i = start; i < input.length(); i++ )
+        {
+            char c = input.charAt( i );
+            String escape = c < HTML_ESCAPES.length ? HTML_ESCAPES[c] : null;
+            if ( escape != null )
+            {
+                out.append( escape );
+            }
+            else
+            {
+                out.append( c );
+            }
+        }
+    }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.concurrent.*;
+
+/**
+ * Hook whose replacement node is produced asynchronously (e.g. waiting on I/O). All async hooks of a Block are started before any of
+ * them is waited on, and the rest of the Block is rendered meanwhile, so their latencies overlap instead of adding up. Their outcomes
+ * are written in document order.
+ * <p>
+ * The future may be completed by any executor, a virtual thread per hook (Java 21+) suits hooks that mostly wait. The
+ * {@link HookContext} is a snapshot that stays valid while the future runs.
+ */
+public interface AsyncHook extends Hook
+{
+    CompletableFuture<Node> doHookAsync( HookContext context )
+        throws Exception;
+
+    /**
+     * Milliseconds to wait for the outcome once it is needed, 0 or less to wait as long as it takes.
+     */
+    default long getTimeout()
+    {
+        return 0;
+    }
+
+    /**
+     * Wait for the async outcome, for renderers that call hooks synchronously.
+     */
+    @Override
+    default Node doHook( HookContext context )
+        throws Exception
+    {
+        CompletableFuture<Node> future = doHookAsync( context );
+
+        return getTimeout() > 0 ? future.get( getTimeout(), TimeUnit.MILLISECONDS ) : future.get();
+    }
+}
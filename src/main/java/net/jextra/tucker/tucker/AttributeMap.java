@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.*;
+
+/**
+ * Insertion-ordered attributes of a Node, backed by arrays. Nodes rarely have more than a handful of attributes, so a linear scan is
+ * as fast as hashing and takes a fraction of the memory of a LinkedHashMap.
+ */
+final class AttributeMap extends AbstractMap<String, Attribute>
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final Attribute[] NO_VALUES = new Attribute[0];
+
+    private String[] keys;
+    private Attribute[] values;
+    private int size;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    AttributeMap()
+    {
+        keys = NO_KEYS;
+        values = NO_VALUES;
+    }
+
+    AttributeMap( int capacity )
+    {
+        keys = new String[capacity];
+        values = new Attribute[capacity];
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return indexOf( key ) >= 0;
+    }
+
+    @Override
+    public Attribute get( Object key )
+    {
+        int index = indexOf( key );
+
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public Attribute put( String key, Attribute value )
+    {
+        int index = indexOf( key );
+        if ( index >= 0 )
+        {
+            Attribute old = values[index];
+            values[index] = value;
+            return old;
+        }
+
+        if ( size == keys.length )
+        {
+            int capacity = Math.max( 4, size * 2 );
+            keys = Arrays.copyOf( keys, capacity );
+            values = Arrays.copyOf( values, capacity );
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+
+        return null;
+    }
+
+    @Override
+    public Attribute remove( Object key )
+    {
+        int index = indexOf( key );
+        if ( index < 0 )
+        {
+            return null;
+        }
+
+        Attribute old = values[index];
+        removeAt( index );
+
+        return old;
+    }
+
+    @Override
+    public void clear()
+    {
+        Arrays.fill( keys, 0, size, null );
+        Arrays.fill( values, 0, size, null );
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Attribute>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<String, Attribute>>()
+        {
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Attribute>> iterator()
+            {
+                return new ArrayIterator<Map.Entry<String, Attribute>>()
+                {
+                    @Override
+                    Map.Entry<String, Attribute> get( int index )
+                    {
+                        return new Entry( index );
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<String> keySet()
+    {
+        return new AbstractSet<String>()
+        {
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public boolean contains( Object key )
+            {
+                return indexOf( key ) >= 0;
+            }
+
+            @Override
+            public Iterator<String> iterator()
+            {
+                return new ArrayIterator<String>()
+                {
+                    @Override
+                    String get( int index )
+                    {
+                        return keys[index];
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Collection<Attribute> values()
+    {
+        return new AbstractCollection<Attribute>()
+        {
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public Iterator<Attribute> iterator()
+            {
+                return new ArrayIterator<Attribute>()
+                {
+                    @Override
+                    Attribute get( int index )
+                    {
+                        return values[index];
+                    }
+                };
+            }
+        };
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * Drop unused capacity and share the keys (and class names) with the other Nodes of the parser, once the Node is part of a
+     * {@link Template}.
+     */
+    void compact( StringInterner interner )
+    {
+        if ( size < keys.length )
+        {
+            keys = size == 0 ? NO_KEYS : Arrays.copyOf( keys, size );
+            values = size == 0 ? NO_VALUES : Arrays.copyOf( values, size );
+        }
+
+        for ( int i = 0; i < size; i++ )
+        {
+            keys[i] = interner.intern( keys[i] );
+            Attribute att = values[i];
+            if ( att == null )
+            {
+                continue;
+            }
+
+            att.setKey( interner.intern( att.getKey() ) );
+            if ( Node.ATT_CLASS.equals( att.getKey() ) && att.getValue() != null )
+            {
+                String value = interner.intern( att.getValue() );
+                values[i] = new ClassAttribute( att.getKey(), value, interner.internClasses( value ) );
+            }
+        }
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private int indexOf( Object key )
+    {
+        for ( int i = 0; i < size; i++ )
+        {
+            if ( Objects.equals( keys[i], key ) )
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void removeAt( int index )
+    {
+        int moved = size - index - 1;
+        System.arraycopy( keys, index + 1, keys, index, moved );
+        System.arraycopy( values, index + 1, values, index, moved );
+        size--;
+        keys[size] = null;
+        values[size] = null;
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    private abstract class ArrayIterator<T> implements Iterator<T>
+    {
+        private int next;
+        private int last = -1;
+
+        abstract T get( int index );
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < size;
+        }
+
+        @Override
+        public T next()
+        {
+            if ( next >= size )
+            {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+
+            return get( last );
+        }
+
+        @Override
+        public void remove()
+        {
+            if ( last < 0 )
+            {
+                throw new IllegalStateException();
+            }
+            removeAt( last );
+            next = last;
+            last = -1;
+        }
+    }
+
+    private class Entry implements Map.Entry<String, Attribute>
+    {
+        private final String key;
+        private Attribute value;
+
+        Entry( int index )
+        {
+            key = keys[index];
+            value = values[index];
+        }
+
+        @Override
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public Attribute getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public Attribute setValue( Attribute value )
+        {
+            Attribute old = this.value;
+            this.value = value;
+            put( key, value );
+            return old;
+        }
+
+        @Override
+        public boolean equals( Object other )
+        {
+            if ( !( other instanceof Map.Entry ) )
+            {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+
+            return Objects.equals( key, entry.getKey() ) && Objects.equals( value, entry.getValue() );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode( key ) ^ Objects.hashCode( value );
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.*;
+
+/**
+ * Hook that replaces all the nodes bound to it in one go, e.g. to fetch their data with a single query instead of one per node.
+ * <p>
+ * The contexts are collected while a page is rendered and the hook is called when the output that follows the first bound node is
+ * written: at the end of the render, once that output grows past a bound (64K chars), and before the next node of a streamed insert
+ * is pulled. Only that much output is kept in memory, and only the nodes bound within the same streamed node share a batch.
+ */
+public interface BatchHook extends Hook
+{
+    /**
+     * @return one replacement node per context, in the same order. A null replacement keeps the bound node.
+     */
+    List<Node> doHooks( List<HookContext> contexts )
+        throws Exception;
+
+    @Override
+    default Node doHook( HookContext context )
+        throws Exception
+    {
+        return doHooks( Collections.singletonList( context ) ).get( 0 );
+    }
+}
@@ -21,8 +21,12 @@
 
 package net.jextra.tucker.tucker;
 
+import java.io.*;
 import java.lang.reflect.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.function.*;
 
 /**
  * A Block is a named grouping of {@link Node}s. It does not manifest into any specific tag in the output HTML.
@@ -36,6 +40,18 @@ public class Block extends Node
     private Scope scope;
     private NodeWriter writer;
 
+    // Shared template whose structure this Block uses in place of its own children, until the structure is touched directly.
+    private Template template;
+
+    // Compiled form of the template this Block was built from. Dropped as soon as the Node structure is touched directly.
+    private RenderPlan plan;
+    private Node[] insertionPoints;
+
+    // Content of the insertion points by the names of the insertion points it has itself, each with the point it is in. Kept as the
+    // content is inserted, so inserting does not have to look through everything inserted before. Insertion points added to content
+    // after it was inserted, other than by inserting through this Block, are not seen.
+    private Map<String, Map<Node, Node>> contentPoints;
+
     // ============================================================
     // Constructors
     // ============================================================
@@ -44,7 +60,6 @@ public class Block extends Node
     {
         super( NodeType.block );
         scope = new Scope();
-        writer = new NodeWriter();
     }
 
     public Block( String name )
@@ -57,7 +72,36 @@ public class Block extends Node
     {
         super( other );
         scope = new Scope( other.scope );
-        writer = new NodeWriter( other.writer );
+        writer = other.writer == null ? null : new NodeWriter( other.writer );
+        if ( other.template != null )
+        {
+            template = other.template;
+            plan = other.plan;
+            insertionPoints = template.newInsertionPoints();
+            for ( int i = 0; i < insertionPoints.length; i++ )
+            {
+                for ( Node child : other.insertionPoints[i].children() )
+                {
+                    Node copy = Node.copy( child );
+                    insertionPoints[i].addChild( copy );
+                    indexContent( copy, insertionPoints[i] );
+                }
+            }
+        }
+        else
+        {
+            setPlan( other.plan );
+        }
+    }
+
+    Block( Template template )
+    {
+        super( NodeType.block );
+        setTagName( template.getName() );
+        scope = new Scope( template.getLayout() );
+        this.template = template;
+        plan = template.getPlan();
+        insertionPoints = template.newInsertionPoints();
     }
 
     // ============================================================
@@ -80,6 +124,12 @@ public class Block extends Node
 
     public NodeWriter getWriter()
     {
+        // Only created when needed, Blocks that are inserted into other Blocks are rendered by the outer Block's writer.
+        if ( writer == null )
+        {
+            writer = new NodeWriter();
+        }
+
         return writer;
     }
 
@@ -88,6 +138,83 @@ public class Block extends Node
         this.writer = writer;
     }
 
+    public Template getTemplate()
+    {
+        return template;
+    }
+
+    public RenderPlan getPlan()
+    {
+        return plan;
+    }
+
+    /**
+     * Any direct access to the children may change the structure so the Block gets its own copy of the structure and is no longer
+     * rendered from its compiled plan.
+     */
+    @Override
+    public List<Node> getChildren()
+    {
+        materialize();
+        return super.getChildren();
+    }
+
+    @Override
+    public void clearChildren()
+    {
+        materialize();
+        super.clearChildren();
+    }
+
+    @Override
+    public void addChild( Node node )
+    {
+        materialize();
+        super.addChild( node );
+    }
+
+    @Override
+    public int insert( String insertionName, Node insertNode )
+    {
+        if ( template == null )
+        {
+            return super.insert( insertionName, insertNode );
+        }
+
+        // Same rules as Node.insert, but the insertion points are looked up by name instead of walking the shared structure.
+        int[] slots = template.getPlan().getInsertionSlots( insertionName );
+        int count = slots.length + insertIntoContent( insertionName, Collections.singletonList( insertNode ) );
+        for ( int slot : slots )
+        {
+            insertionPoints[slot].addChild( insertNode );
+            indexContent( insertNode, insertionPoints[slot] );
+        }
+
+        return count;
+    }
+
+    @Override
+    public int insertAll( String insertionName, Collection<? extends Node> insertNodes )
+    {
+        if ( template == null )
+        {
+            return super.insertAll( insertionName, insertNodes );
+        }
+
+        int[] slots = template.getPlan().getInsertionSlots( insertionName );
+        int count = slots.length * insertNodes.size() + insertIntoContent( insertionName, insertNodes );
+        for ( int slot : slots )
+        {
+            insertionPoints[slot].addChildren( insertNodes );
+            for ( Node insertNode : insertNodes )
+            {
+                indexContent( insertNode, insertionPoints[slot] );
+            }
+        }
+
+        return count;
+    }
+
     public Set<String> getVariableNames()
     {
         return scope.getVariableNames();
@@ -157,6 +284,96 @@ public class Block extends Node
         return this;
     }
 
+    /**
+     * The value is written as it is when rendered, without making a String of it. It must not be changed until rendered.
+     */
+    public Block setVariable( String name, CharSequence value )
+    {
+        scope.setVariable( name, value );
+        return this;
+    }
+
+    public Block setVariable( String name, CharSequence value, Boolean encode )
+    {
+        scope.setVariable( name, value, encode );
+        return this;
+    }
+
+    public Block setVariable( String name, char[] chars, int offset, int length )
+    {
+        scope.setVariable( name, chars, offset, length );
+        return this;
+    }
+
+    /**
+     * Number written digit by digit when rendered, without making a String of it.
+     */
+    public Block setVariable( String name, long value )
+    {
+        scope.setVariable( name, value );
+        return this;
+    }
+
+    public Block setVariable( String name, double value )
+    {
+        scope.setVariable( name, value );
+        return this;
+    }
+
+    /**
+     * The supplier is only called if rendering reaches something that uses the variable, see {@link Scope#setVariable(String, Supplier)}.
+     */
+    public Block setVariable( String name, Supplier<?> supplier )
+    {
+        scope.setVariable( name, supplier );
+        return this;
+    }
+
+    /**
+     * Same as {@link #setVariable(String, String)} with a handle from {@link Template#getVariableSlot(String)}.
+     */
+    public Block setVariable( ScopeSlot slot, String value )
+    {
+        scope.setVariable( slot, value );
+        return this;
+    }
+
+    public Block setVariable( ScopeSlot slot, String value, Boolean encode )
+    {
+        scope.setVariable( slot, value, encode );
+        return this;
+    }
+
+    public Block setVariable( ScopeSlot slot, CharSequence value )
+    {
+        scope.setVariable( slot, value );
+        return this;
+    }
+
+    public Block setVariable( ScopeSlot slot, long value )
+    {
+        scope.setVariable( slot, value );
+        return this;
+    }
+
+    public Block setVariable( ScopeSlot slot, double value )
+    {
+        scope.setVariable( slot, value );
+        return this;
+    }
+
+    public Block setVariable( ScopeSlot slot, Supplier<?> supplier )
+    {
+        scope.setVariable( slot, supplier );
+        return this;
+    }
+
+    public Block setBoolean( ScopeSlot slot, boolean value )
+    {
+        scope.setBoolean( slot, value );
+        return this;
+    }
+
     public Block setBoolean( String name )
     {
         return setBoolean( name, true );
@@ -221,11 +438,69 @@ public class Block extends Node
 
     public String render( PageContext page, int indent )
     {
+        NodeWriter writer = getWriter();
         writer.setPageContext( page );
         writer.setIndent( indent );
         return writer.render( this );
     }
 
+    /**
+     * Stream the output into the Appendable (e.g. a Writer or StringBuilder) as it is rendered, without an intermediate String.
+     */
+    public void render( PageContext page, Appendable out )
+        throws IOException
+    {
+        render( page, out, getIndent() );
+    }
+
+    public void render( PageContext page, Appendable out, int indent )
+        throws IOException
+    {
+        NodeWriter writer = getWriter();
+        writer.setPageContext( page );
+        writer.setIndent( indent );
+        writer.render( this, out );
+    }
+
+    /**
+     * Stream the output into the OutputStream using the given Charset. The stream is flushed but not closed.
+     */
+    public void render( PageContext page, OutputStream out, Charset charset )
+        throws IOException
+    {
+        if ( StandardCharsets.UTF_8.equals( charset ) )
+        {
+            render( page, out );
+            return;
+        }
+
+        Writer streamWriter = new BufferedWriter( new OutputStreamWriter( out, charset ) );
+        render( page, streamWriter );
+        streamWriter.flush();
+    }
+
+    /**
+     * Stream the output into the OutputStream as UTF-8 bytes, copying the static markup as it was encoded when compiled. The stream is
+     * flushed but not closed.
+     */
+    public void render( PageContext page, OutputStream out )
+        throws IOException
+    {
+        NodeWriter writer = getWriter();
+        writer.setPageContext( page );
+        writer.setIndent( getIndent() );
+        writer.render( this, out );
+    }
+
+    public void render( PageContext page, WritableByteChannel channel )
+        throws IOException
+    {
+        NodeWriter writer = getWriter();
+        writer.setPageContext( page );
+        writer.setIndent( getIndent() );
+        writer.render( this, channel );
+    }
+
     /**
      * @use render(PageContext)
      */
@@ -241,10 +516,220 @@ public class Block extends Node
         return render( new NodeWriter.PageContextStub() );
     }
 
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * Attach the compiled plan of the template this Block is a copy of.
+     */
+    void setPlan( RenderPlan plan )
+    {
+        this.plan = null;
+        insertionPoints = null;
+        if ( plan == null )
+        {
+            return;
+        }
+
+        List<Node> points = new ArrayList<>();
+        RenderPlan.collectInsertionPoints( this, points );
+        if ( points.size() != plan.getInsertionPointCount() )
+        {
+            return;
+        }
+
+        this.plan = plan;
+        insertionPoints = points.toArray( new Node[0] );
+    }
+
+    /**
+     * This Block's own insertion points, in the slot order of its plan.
+     */
+    Node[] getInsertionPoints()
+    {
+        return insertionPoints;
+    }
+
+    /**
+     * The Node whose children make up the structure of this Block. That is the shared template while this Block has no structure of
+     * its own.
+     */
+    Node structure()
+    {
+        return template == null ? this : template.getRoot();
+    }
+
     // ----------
     // private
     // ----------
 
+    /**
+     * Give this Block its own view of the template structure (with the insertions moved into it) and stop using the compiled plan.
+     * Template nodes are only borrowed, each one is copied when it is about to be modified.
+     */
+    private void materialize()
+    {
+        if ( template != null )
+        {
+            for ( Node child : template.getRoot().children() )
+            {
+                super.addChild( Node.share( child ) );
+            }
+            moveInsertions( children(), 0 );
+            template = null;
+        }
+
+        plan = null;
+        insertionPoints = null;
+        contentPoints = null;
+    }
+
+    /**
+     * Move the content of the insertion slots (in slot order, starting at the given one) into the insertion nodes found in the list,
+     * only copying the nodes on the way to a slot that has content.
+     *
+     * @return the slot following the last insertion node of the list.
+     */
+    private int moveInsertions( List<Node> nodes, int slot )
+    {
+        for ( Node node : nodes )
+        {
+            switch ( node.getNodeType() )
+            {
+                case insertion:
+                    for ( Node child : insertionPoints[slot].children() )
+                    {
+                        node.addChild( child );
+                    }
+                    slot++;
+                    break;
+
+                case tag:
+                {
+                    List<Node> points = new ArrayList<>();
+                    RenderPlan.collectInsertionPoints( node, points );
+                    int end = slot + points.size();
+                    for ( int i = slot; i < end; i++ )
+                    {
+                        if ( !insertionPoints[i].children().isEmpty() )
+                        {
+                            moveInsertions( node.getChildren(), slot );
+                            break;
+                        }
+                    }
+                    slot = end;
+                    break;
+                }
+            }
+        }
+
+        return slot;
+    }
+
+    /**
+     * Content already inserted at the other insertion points may have insertion points of its own. Only the content known to have
+     * one with the name is visited.
+     */
+    private int insertIntoContent( String insertionName, Collection<? extends Node> insertNodes )
+    {
+        Map<Node, Node> contents = contentPoints == null ? null : contentPoints.get( insertionName );
+        if ( contents == null )
+        {
+            return 0;
+        }
+
+        int count = 0;
+        Set<String> names = null;
+        // Copied, the inserted nodes may add the content to this very index.
+        for ( Map.Entry<Node, Node> entry : new ArrayList<>( contents.entrySet() ) )
+        {
+            Node content = entry.getKey();
+            Node point = entry.getValue();
+            if ( insertionName.equals( point.getTagName() ) )
+            {
+                continue;
+            }
+
+            int inserted = 0;
+            for ( Node insertNode : insertNodes )
+            {
+                inserted += content.insert( insertionName, insertNode );
+            }
+
+            // The content now has the insertion points of the inserted nodes as well.
+            if ( inserted > 0 )
+            {
+                if ( names == null )
+                {
+                    names = new HashSet<>();
+                    for ( Node insertNode : insertNodes )
+                    {
+                        collectInsertionNames( insertNode, names );
+                    }
+                }
+                indexContent( content, point, names );
+            }
+            count += inserted;
+        }
+
+        return count;
+    }
+
+    private void indexContent( Node content, Node point )
+    {
+        Set<String> names = new HashSet<>();
+        collectInsertionNames( content, names );
+        indexContent( content, point, names );
+    }
+
+    private void indexContent( Node content, Node point, Set<String> names )
+    {
+        if ( names.isEmpty() )
+        {
+            return;
+        }
+        else if ( contentPoints == null )
+        {
+            contentPoints = new HashMap<>();
+        }
+
+        for ( String name : names )
+        {
+            contentPoints.computeIfAbsent( name, key -> new IdentityHashMap<>() ).put( content, point );
+        }
+    }
+
+    /**
+     * Names of the insertion points of the node, a Block of a template knows them without walking its structure.
+     */
+    private static void collectInsertionNames( Node node, Set<String> names )
+    {
+        if ( node instanceof StreamedNode )
+        {
+            return;
+        }
+        else if ( node instanceof Block && ( (Block) node ).template != null )
+        {
+            Block block = (Block) node;
+            names.addAll( block.template.getPlan().getInsertionNames() );
+            if ( block.contentPoints != null )
+            {
+                names.addAll( block.contentPoints.keySet() );
+            }
+            return;
+        }
+        else if ( node.getNodeType() == NodeType.insertion )
+        {
+            names.add( node.getTagName() );
+        }
+
+        for ( Node child : node.children() )
+        {
+            collectInsertionNames( child, names );
+        }
+    }
+
     private Node findByElementId( Node node, String id )
     {
         if ( id.equals( node.getId() ) )
@@ -252,7 +737,7 @@ public class Block extends Node
             return node;
         }
 
-        for ( Node child : node.getChildren() )
+        for ( Node child : node.children() )
         {
             Node e = findByElementId( child, id );
             if ( e != null )
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Output that writes UTF-8 bytes to an OutputStream or WritableByteChannel. Static text of a {@link RenderPlan} is copied as it was
+ * encoded when compiled, only dynamic text (variable values, phrases, etc.) is encoded while rendering.
+ */
+class ByteOutput extends Output
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte REPLACEMENT = '?';
+
+    private OutputStream stream;
+    private WritableByteChannel channel;
+    private byte[] buffer;
+    private int count;
+    private char highSurrogate;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    ByteOutput( OutputStream stream )
+    {
+        super( null );
+        this.stream = stream;
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    ByteOutput( WritableByteChannel channel )
+    {
+        super( null );
+        this.channel = channel;
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // protected
+    // ----------
+
+    @Override
+    protected void append( char c )
+        throws IOException
+    {
+        if ( count + 4 > buffer.length )
+        {
+            flushBuffer();
+        }
+        encode( c );
+    }
+
+    @Override
+    protected void append( CharSequence string, int off, int len )
+        throws IOException
+    {
+        for ( int i = off; i < off + len; i++ )
+        {
+            if ( count + 4 > buffer.length )
+            {
+                flushBuffer();
+            }
+
+            char c = string.charAt( i );
+            if ( c < 0x80 && highSurrogate == 0 )
+            {
+                buffer[count++] = (byte) c;
+            }
+            else
+            {
+                encode( c );
+            }
+        }
+    }
+
+    @Override
+    protected void append( char[] chars, int off, int len )
+        throws IOException
+    {
+        for ( int i = off; i < off + len; i++ )
+        {
+            if ( count + 4 > buffer.length )
+            {
+                flushBuffer();
+            }
+
+            char c = chars[i];
+            if ( c < 0x80 && highSurrogate == 0 )
+            {
+                buffer[count++] = (byte) c;
+            }
+            else
+            {
+                encode( c );
+            }
+        }
+    }
+
+    @Override
+    protected void appendEncoded( String text, byte[] utf8 )
+        throws IOException
+    {
+        if ( highSurrogate != 0 )
+        {
+            append( text, 0, text.length() );
+            return;
+        }
+
+        if ( utf8.length > buffer.length - count )
+        {
+            flushBuffer();
+            if ( utf8.length >= buffer.length )
+            {
+                writeTarget( utf8, utf8.length );
+                return;
+            }
+        }
+
+        System.arraycopy( utf8, 0, buffer, count, utf8.length );
+        count += utf8.length;
+    }
+
+    @Override
+    protected void flushTarget()
+        throws IOException
+    {
+        if ( highSurrogate != 0 )
+        {
+            // Unpaired at the very end.
+            highSurrogate = 0;
+            append( (char) REPLACEMENT );
+        }
+
+        flushBuffer();
+        if ( stream != null )
+        {
+            stream.flush();
+        }
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    /**
+     * Same as the JDK's UTF-8 encoder, including replacing unpaired surrogates with '?'.
+     */
+    private void encode( char c )
+    {
+        if ( highSurrogate != 0 )
+        {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if ( Character.isLowSurrogate( c ) )
+            {
+                int codePoint = Character.toCodePoint( high, c );
+                buffer[count++] = (byte) ( 0xF0 | ( codePoint >> 18 ) );
+                buffer[count++] = (byte) ( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) );
+                buffer[count++] = (byte) ( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) );
+                buffer[count++] = (byte) ( 0x80 | ( codePoint & 0x3F ) );
+                return;
+            }
+            buffer[count++] = REPLACEMENT;
+        }
+
+        if ( c < 0x80 )
+        {
+            buffer[count++] = (byte) c;
+        }
+        else if ( c < 0x800 )
+        {
+            buffer[count++] = (byte) ( 0xC0 | ( c >> 6 ) );
+            buffer[count++] = (byte) ( 0x80 | ( c & 0x3F ) );
+        }
+        else if ( Character.isHighSurrogate( c ) )
+        {
+            highSurrogate = c;
+        }
+        else if ( Character.isLowSurrogate( c ) )
+        {
+            buffer[count++] = REPLACEMENT;
+        }
+        else
+        {
+            buffer[count++] = (byte) ( 0xE0 | ( c >> 12 ) );
+            buffer[count++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+            buffer[count++] = (byte) ( 0x80 | ( c & 0x3F ) );
+        }
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        if ( count > 0 )
+        {
+            writeTarget( buffer, count );
+            count = 0;
+        }
+    }
+
+    private void writeTarget( byte[] bytes, int len )
+        throws IOException
+    {
+        if ( stream != null )
+        {
+            stream.write( bytes, 0, len );
+            return;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap( bytes, 0, len );
+        while ( byteBuffer.hasRemaining() )
+        {
+            channel.write( byteBuffer );
+        }
+    }
+}
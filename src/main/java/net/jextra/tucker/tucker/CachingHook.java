@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+/**
+ * Hook whose output only depends on a key it derives from its {@link HookContext} (e.g. node attributes or a few variables). The
+ * output rendered for a key is kept in a {@link HookCache} and written again for the same key without calling {@link #doHook}.
+ * <p>
+ * Side effects of doHook, such as adding style sheets to the page, only happen when the output is not cached. Output is only shared
+ * by the same hook instance for equal keys and the same {@link Translator}, as phrases are translated before the output is cached.
+ * Anything else the output depends on (e.g. a locale that is not implied by the translator) must be part of the key.
+ */
+public interface CachingHook extends Hook
+{
+    /**
+     * @return key that identifies the output for the context, or null to not cache it this time. Must implement equals and hashCode.
+     */
+    Object getCacheKey( HookContext context )
+        throws Exception;
+
+    default HookCache getHookCache()
+    {
+        return HookCache.getShared();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+/**
+ * Class attribute of a compacted template Node, which also keeps its class names so they are shared with other Nodes and do not have
+ * to be split again when matched.
+ */
+final class ClassAttribute extends Attribute
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private String[] classes;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    ClassAttribute( String key, String value, String[] classes )
+    {
+        super( key, value );
+        this.classes = classes;
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    @Override
+    public void setValue( String seq )
+    {
+        super.setValue( seq );
+        classes = null;
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * @return the class names, or null once the value has been changed.
+     */
+    String[] getClasses()
+    {
+        return classes;
+    }
+}
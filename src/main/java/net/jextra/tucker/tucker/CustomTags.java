@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.*;
+
+/**
+ * Hooks registered with a {@link Tucker} for all of its templates, e.g. site-wide custom tags. Each {@link Template} resolves its tags
+ * against them once (and again only after another registration), so rendering does not have to match every tag.
+ */
+class CustomTags
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private final List<HookBinding> bindings;
+
+    // Replaced as a whole on every registration so templates can tell that their resolved hooks are out of date.
+    private volatile HookIndex index;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    CustomTags()
+    {
+        bindings = new ArrayList<>();
+        index = new HookIndex( bindings );
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // package
+    // ----------
+
+    synchronized void register( String hookSelector, Hook hook )
+    {
+        bindings.add( new HookBinding( hookSelector, hook ) );
+        index = new HookIndex( bindings );
+    }
+
+    HookIndex getIndex()
+    {
+        return index;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.*;
+
+/**
+ * A tag name, attribute key/value or text segment that has been pre-scanned for variable, boolean and phrase markers. Literal portions
+ * are stored already cleaned (braces restored and &lt; &gt; escaped) so that only the markers need any work at render time.
+ */
+class Expression
+{
+    // ============================================================
+    // Enums
+    // ============================================================
+
+    enum PartType
+    {
+        text,
+        variable,
+        bool,
+        phrase
+    }
+
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private Part[] parts;
+    private int markerCount;
+    private boolean hasPhrase;
+    private boolean blankText;
+    private String staticValue;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    private Expression( List<Part> parts )
+    {
+        this.parts = parts.toArray( new Part[0] );
+
+        StringBuilder text = new StringBuilder();
+        for ( Part part : this.parts )
+        {
+            switch ( part.type )
+            {
+                case text:
+                    text.append( part.value );
+                    break;
+
+                case variable:
+                case bool:
+                    markerCount++;
+                    break;
+
+                case phrase:
+                    hasPhrase = true;
+                    markerCount += part.phrase.markerCount;
+                    break;
+            }
+        }
+
+        blankText = text.toString().trim().isEmpty();
+        if ( markerCount == 0 && !hasPhrase )
+        {
+            staticValue = text.toString();
+        }
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    /**
+     * Scan a string produced by the {@link TuckerParser} (containing {@link Tucker#VAR_START} style markers) into its parts.
+     */
+    public static Expression compile( String value )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+
+        List<Part> parts = new ArrayList<>();
+        List<Part> phraseParts = null;
+        StringBuilder text = new StringBuilder();
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            switch ( c )
+            {
+                case Tucker.VAR_START:
+                case Tucker.BOOL_START:
+                {
+                    char end = c == Tucker.VAR_START ? Tucker.VAR_END : Tucker.BOOL_END;
+                    int endPos = value.indexOf( end, i + 1 );
+                    if ( endPos < 0 )
+                    {
+                        // Unterminated marker is left alone, just like the original regex would have.
+                        text.append( c );
+                        break;
+                    }
+
+                    List<Part> target = phraseParts == null ? parts : phraseParts;
+                    flushText( text, target );
+                    String name = cleanLiteral( value.substring( i + 1, endPos ) );
+                    target.add( new Part( c == Tucker.VAR_START ? PartType.variable : PartType.bool, name ) );
+                    i = endPos;
+                    break;
+                }
+
+                case Tucker.PHRASE_START:
+                    if ( phraseParts == null && value.indexOf( Tucker.PHRASE_END, i + 1 ) >= 0 )
+                    {
+                        flushText( text, parts );
+                        phraseParts = new ArrayList<>();
+                    }
+                    break;
+
+                case Tucker.PHRASE_END:
+                    if ( phraseParts != null )
+                    {
+                        flushText( text, phraseParts );
+                        parts.add( new Part( new Expression( phraseParts ) ) );
+                        phraseParts = null;
+                    }
+                    break;
+
+                default:
+                    appendLiteral( text, c );
+                    break;
+            }
+        }
+        flushText( text, parts );
+
+        return new Expression( parts );
+    }
+
+    /**
+     * Same literal replacements done by {@link NodeWriter#cleanString(String)} before any variable is substituted.
+     */
+    public static String cleanLiteral( String value )
+    {
+        StringBuilder builder = new StringBuilder( value.length() );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            appendLiteral( builder, value.charAt( i ) );
+        }
+
+        return builder.toString();
+    }
+
+    public Part[] getParts()
+    {
+        return parts;
+    }
+
+    /**
+     * True if there are no variables, booleans or phrases, in which case {@link #getStaticValue()} is the output.
+     */
+    public boolean isStatic()
+    {
+        return staticValue != null;
+    }
+
+    public String getStaticValue()
+    {
+        return staticValue;
+    }
+
+    /**
+     * Only an expression with a single variable/boolean and otherwise blank text can ever evaluate to null.
+     */
+    public boolean canBeNull()
+    {
+        return markerCount == 1 && ( blankText || hasPhrase );
+    }
+
+    public boolean hasPhrase()
+    {
+        return hasPhrase;
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private static void appendLiteral( StringBuilder builder, char c )
+    {
+        switch ( c )
+        {
+            case Tucker.LEFT_BRACE:
+                builder.append( '{' );
+                break;
+
+            case Tucker.RIGHT_BRACE:
+                builder.append( '}' );
+                break;
+
+            case Tucker.BACK_TICK:
+                builder.append( '`' );
+                break;
+
+            case '<':
+                builder.append( Tucker.LT );
+                break;
+
+            case '>':
+                builder.append( Tucker.GT );
+                break;
+
+            default:
+                builder.append( c );
+                break;
+        }
+    }
+
+    private static void flushText( StringBuilder text, List<Part> target )
+    {
+        if ( text.length() == 0 )
+        {
+            return;
+        }
+
+        target.add( new Part( PartType.text, text.toString() ) );
+        text.setLength( 0 );
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    static class Part
+    {
+        private PartType type;
+        private String value;
+        private Expression phrase;
+        private int slot = -1;
+
+        Part( PartType type, String value )
+        {
+            this.type = type;
+            this.value = value;
+        }
+
+        Part( Expression phrase )
+        {
+            type = PartType.phrase;
+            this.phrase = phrase;
+        }
+
+        public PartType getType()
+        {
+            return type;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+
+        public Expression getPhrase()
+        {
+            return phrase;
+        }
+
+        /**
+         * Index of the variable or boolean in the {@link ScopeLayout} of the plan, or -1 if not resolved.
+         */
+        public int getSlot()
+        {
+            return slot;
+        }
+
+        void setSlot( int slot )
+        {
+            this.slot = slot;
+        }
+    }
+}
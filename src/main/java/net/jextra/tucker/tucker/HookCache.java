@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Bounded LRU of the output rendered by {@link CachingHook}s, sized by the (approximate) memory the output takes. Entries can also
+ * expire after a time to live. Thread-safe, usually shared by all renders.
+ */
+public class HookCache
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+    // Rough memory taken by an entry besides its text and bytes.
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static final HookCache SHARED = new HookCache( DEFAULT_MAX_BYTES );
+
+    private final long maxBytes;
+    private final long timeToLive;
+    private final LinkedHashMap<Key, Entry> entries;
+    private long size;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    public HookCache( long maxBytes )
+    {
+        this( maxBytes, 0 );
+    }
+
+    /**
+     * @param timeToLive milliseconds an entry is used for, 0 or less for no limit.
+     */
+    public HookCache( long maxBytes, long timeToLive )
+    {
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+        entries = new LinkedHashMap<>( 16, 0.75f, true );
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    /**
+     * Cache used by CachingHooks that do not provide their own.
+     */
+    public static HookCache getShared()
+    {
+        return SHARED;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getTimeToLive()
+    {
+        return timeToLive;
+    }
+
+    /**
+     * Approximate bytes taken by the entries.
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Drop the output of every hook of the class for the key (in all output modes, indents and translations).
+     */
+    public synchronized void invalidate( Class<? extends Hook> hookClass, Object cacheKey )
+    {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while ( it.hasNext() )
+        {
+            Map.Entry<Key, Entry> mapEntry = it.next();
+            if ( mapEntry.getKey().hook.getClass() == hookClass && mapEntry.getKey().cacheKey.equals( cacheKey ) )
+            {
+                size -= mapEntry.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop the output of the hook for the key (in all output modes, indents and translations).
+     */
+    public synchronized void invalidate( Hook hook, Object cacheKey )
+    {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while ( it.hasNext() )
+        {
+            Map.Entry<Key, Entry> mapEntry = it.next();
+            if ( mapEntry.getKey().hook == hook && mapEntry.getKey().cacheKey.equals( cacheKey ) )
+            {
+                size -= mapEntry.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        size = 0;
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    synchronized Entry get( Key key )
+    {
+        Entry entry = entries.get( key );
+        if ( entry != null && timeToLive > 0 && System.currentTimeMillis() - entry.created > timeToLive )
+        {
+            entries.remove( key );
+            size -= entry.weight;
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Keep the rendered text, unless it alone is more than the cache can hold.
+     */
+    Entry put( Key key, String text )
+    {
+        Entry entry = new Entry( text );
+        if ( entry.weight > maxBytes )
+        {
+            return entry;
+        }
+
+        synchronized ( this )
+        {
+            Entry old = entries.put( key, entry );
+            size += entry.weight - ( old == null ? 0 : old.weight );
+
+            Iterator<Entry> it = entries.values().iterator();
+            while ( size > maxBytes && it.hasNext() )
+            {
+                size -= it.next().weight;
+                it.remove();
+            }
+        }
+
+        return entry;
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    /**
+     * The hook's key plus everything else the rendered text depends on.
+     */
+    static class Key
+    {
+        // The hook instance, differently configured hooks of one class must not share their output.
+        private final Hook hook;
+        private final Object cacheKey;
+
+        // Phrases are translated before the output is cached.
+        private final Translator translator;
+        private final NodeWriter.OutputMode outputMode;
+        private final int indent;
+        private final boolean preserveWhitespace;
+
+        Key( Hook hook, Object cacheKey, Translator translator, NodeWriter.OutputMode outputMode, int indent, boolean preserveWhitespace )
+        {
+            this.hook = hook;
+            this.cacheKey = cacheKey;
+            this.translator = translator;
+            this.outputMode = outputMode;
+            this.indent = indent;
+            this.preserveWhitespace = preserveWhitespace;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( !( o instanceof Key ) )
+            {
+                return false;
+            }
+
+            Key other = (Key) o;
+
+            return hook == other.hook && outputMode == other.outputMode && indent == other.indent &&
+                preserveWhitespace == other.preserveWhitespace && Objects.equals( translator, other.translator ) &&
+                cacheKey.equals( other.cacheKey );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash( System.identityHashCode( hook ), cacheKey, translator, outputMode, indent, preserveWhitespace );
+        }
+    }
+
+    static class Entry
+    {
+        private final String text;
+        private final byte[] bytes;
+        private final long created;
+        private final long weight;
+
+        Entry( String text )
+        {
+            this.text = text;
+            bytes = text.getBytes( StandardCharsets.UTF_8 );
+            created = System.currentTimeMillis();
+            weight = 2L * text.length() + bytes.length + ENTRY_OVERHEAD;
+        }
+
+        String getText()
+        {
+            return text;
+        }
+
+        byte[] getBytes()
+        {
+            return bytes;
+        }
+    }
+}
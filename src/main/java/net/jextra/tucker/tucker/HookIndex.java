@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.*;
+
+/**
+ * The {@link HookBinding}s of a {@link Scope} grouped by tag name, so finding the hook of a node only looks at the bindings for its tag
+ * and costs a single map lookup for tags that nothing is bound to. The class attribute of a node is split at most once per lookup.
+ */
+class HookIndex
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    // Stands for a template node whose hook can only be found once its variables are substituted.
+    static final Hook DYNAMIC = context -> null;
+
+    private static final String[] NO_CLASSES = new String[0];
+
+    private final int bindingCount;
+    private final Map<String, Candidate[]> candidates;
+    private final boolean asyncHooks;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    HookIndex( List<HookBinding> bindings )
+    {
+        bindingCount = bindings.size();
+
+        Map<String, List<Candidate>> lists = new HashMap<>();
+        for ( HookBinding binding : bindings )
+        {
+            lists.computeIfAbsent( binding.getTagName(), k -> new ArrayList<>() ).add( new Candidate( binding ) );
+        }
+
+        asyncHooks = bindings.stream().anyMatch( binding -> binding.getHook() instanceof AsyncHook );
+
+        candidates = new HashMap<>();
+        for ( Map.Entry<String, List<Candidate>> entry : lists.entrySet() )
+        {
+            candidates.put( entry.getKey(), entry.getValue().toArray( new Candidate[0] ) );
+        }
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * Number of bindings the index was built from, to tell when it is out of date.
+     */
+    int getBindingCount()
+    {
+        return bindingCount;
+    }
+
+    /**
+     * True if any of the hooks is an {@link AsyncHook}.
+     */
+    boolean hasAsyncHooks()
+    {
+        return asyncHooks;
+    }
+
+    boolean isEmpty()
+    {
+        return bindingCount == 0;
+    }
+
+    /**
+     * False if no hook can be bound to a tag with the (possibly unsubstituted) name.
+     */
+    boolean mayMatch( String tagName )
+    {
+        if ( tagName == null || isEmpty() )
+        {
+            return false;
+        }
+
+        // A name that contains a variable is only known once substituted.
+        return isDynamic( tagName ) || candidates.containsKey( tagName );
+    }
+
+    /**
+     * Hook of a node of a parsed template: the matching hook (or null) when the tag name, id and class contain no variables, otherwise
+     * {@link #DYNAMIC} if a hook might match.
+     */
+    Hook resolve( Node node )
+    {
+        if ( !mayMatch( node.getTagName() ) )
+        {
+            return null;
+        }
+
+        if ( isDynamic( node.getTagName() ) || isDynamic( node.attributes().get( Node.ATT_ID ) ) ||
+            isDynamic( node.attributes().get( Node.ATT_CLASS ) ) )
+        {
+            return DYNAMIC;
+        }
+
+        return find( node );
+    }
+
+    /**
+     * First bound hook (in the order of binding) that matches the node.
+     */
+    Hook find( Node node )
+    {
+        Candidate[] list = node.getTagName() == null ? null : candidates.get( node.getTagName() );
+        if ( list == null )
+        {
+            return null;
+        }
+
+        String id = null;
+        String[] classes = null;
+        for ( Candidate candidate : list )
+        {
+            if ( candidate.id != null )
+            {
+                if ( id == null )
+                {
+                    id = node.getId();
+                }
+                if ( !candidate.id.equals( id ) )
+                {
+                    continue;
+                }
+            }
+
+            if ( candidate.classes.length > 0 )
+            {
+                if ( classes == null )
+                {
+                    Attribute att = node.attributes().get( Node.ATT_CLASS );
+                    classes = tokenize( att == null ? null : att.getValue() );
+                }
+                if ( !containsAll( classes, candidate.classes ) )
+                {
+                    continue;
+                }
+            }
+
+            return candidate.hook;
+        }
+
+        return null;
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private static boolean isDynamic( Attribute att )
+    {
+        return att != null && isDynamic( att.getValue() );
+    }
+
+    /**
+     * True if the template text contains variables, booleans or phrases (all marked with control characters).
+     */
+    private static boolean isDynamic( String string )
+    {
+        if ( string == null )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < string.length(); i++ )
+        {
+            if ( string.charAt( i ) < ' ' )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sorted whitespace separated tokens of a class attribute.
+     */
+    private static String[] tokenize( String value )
+    {
+        if ( value == null || value.isEmpty() )
+        {
+            return NO_CLASSES;
+        }
+
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for ( int i = 0; i <= value.length(); i++ )
+        {
+            if ( i == value.length() || Character.isWhitespace( value.charAt( i ) ) )
+            {
+                if ( start >= 0 )
+                {
+                    tokens.add( value.substring( start, i ) );
+                    start = -1;
+                }
+            }
+            else if ( start < 0 )
+            {
+                start = i;
+            }
+        }
+
+        String[] array = tokens.toArray( new String[0] );
+        Arrays.sort( array );
+
+        return array;
+    }
+
+    private static boolean containsAll( String[] sorted, String[] required )
+    {
+        for ( String clss : required )
+        {
+            if ( Arrays.binarySearch( sorted, clss ) < 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    private static class Candidate
+    {
+        private final String id;
+        private final String[] classes;
+        private final Hook hook;
+
+        Candidate( HookBinding binding )
+        {
+            id = binding.getId();
+            classes = binding.getStyleClasses().toArray( new String[0] );
+            hook = binding.getHook();
+        }
+    }
+}
@@ -22,6 +22,8 @@
 package net.jextra.tucker.tucker;
 
 import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 /**
  * A Node is typically a single line in the .thtml file. It can be either a root block, a tag (typical html tag with attributes and text),
@@ -49,6 +51,11 @@ public class Node
     public static final String ATT_ID = "id";
     public static final String ATT_CLASS = "class";
 
+    // Shared by every Node that has none, replaced by its own collection on first modification.
+    private static final Map<String, Attribute> NO_ATTRIBUTES = Collections.emptyMap();
+    private static final List<Segment> NO_SEGMENTS = Collections.emptyList();
+    private static final List<Node> NO_CHILDREN = Collections.emptyList();
+
     private NodeType type;
     private int indent;
     private int row;
@@ -59,6 +66,11 @@ public class Node
     private List<Node> children;
     private String rawText;
 
+    // Collections still borrowed from the (shared) Node this one was created from, copied on first modification.
+    private boolean sharedAttributes;
+    private boolean sharedSegments;
+    private boolean sharedChildren;
+
     // ============================================================
     // Constructors
     // ============================================================
@@ -67,9 +79,9 @@ public class Node
     {
         type = NodeType.tag;
         tagName = DEFAULT_TAG;
-        attributes = new LinkedHashMap<>();
-        segments = new ArrayList<>();
-        children = new ArrayList<>();
+        attributes = NO_ATTRIBUTES;
+        segments = NO_SEGMENTS;
+        children = NO_CHILDREN;
     }
 
     public Node( NodeType type )
@@ -88,24 +100,52 @@ public class Node
         tagName = other.tagName;
         rawText = other.rawText;
 
-        for ( String key : other.attributes.keySet() )
+        if ( !other.attributes.isEmpty() )
         {
-            Attribute att = other.attributes.get( key );
-            Attribute newAtt = new Attribute( att );
-            attributes.put( key, newAtt );
+            attributes = new AttributeMap( other.attributes.size() );
+            for ( String key : other.attributes.keySet() )
+            {
+                Attribute att = other.attributes.get( key );
+                Attribute newAtt = new Attribute( att );
+                attributes.put( key, newAtt );
+            }
         }
 
-        for ( Segment segment : other.segments )
+        if ( !other.segments.isEmpty() )
         {
-            segments.add( new Segment( segment ) );
+            segments = new ArrayList<>( other.segments.size() );
+            for ( Segment segment : other.segments )
+            {
+                segments.add( new Segment( segment ) );
+            }
         }
 
-        for ( Node child : other.children )
+        if ( !other.children.isEmpty() )
         {
-            children.add( new Node( child ) );
+            children = new ArrayList<>( other.children.size() );
+            for ( Node child : other.children )
+            {
+                children.add( copy( child ) );
+            }
         }
     }
 
+    private Node( Node other, boolean shared )
+    {
+        type = other.type;
+        indent = other.indent;
+        row = other.row;
+        inline = other.inline;
+        tagName = other.tagName;
+        rawText = other.rawText;
+        attributes = other.attributes;
+        segments = other.segments;
+        children = other.children;
+        sharedAttributes = shared;
+        sharedSegments = shared;
+        sharedChildren = shared;
+    }
+
     // ============================================================
     // Methods
     // ============================================================
@@ -114,6 +154,20 @@ public class Node
     // public
     // ----------
 
+    /**
+     * Deep copy of the node that keeps Blocks as Blocks.
+     */
+    public static Node copy( Node node )
+    {
+        // An iterator cannot be copied, the copies share it.
+        if ( node instanceof StreamedNode )
+        {
+            return node;
+        }
+
+        return node instanceof Block ? new Block( (Block) node ) : new Node( node );
+    }
+
     public static Node newRawNode( String rawText )
     {
         Node node = new Node( Node.NodeType.rawText );
@@ -180,6 +234,7 @@ public class Node
 
     public Map<String, Attribute> getAttributes()
     {
+        ownAttributes();
         return attributes;
     }
 
@@ -190,6 +245,7 @@ public class Node
 
     public void addAttribute( String key, String value )
     {
+        ownAttributes();
         if ( attributes.containsKey( key ) )
         {
             Attribute att = attributes.get( key );
@@ -216,16 +272,29 @@ public class Node
             return;
         }
 
+        ownAttributes();
         attributes.put( att.getKey(), att );
     }
 
     public Attribute getAttribute( String key )
     {
+        if ( attributes == NO_ATTRIBUTES )
+        {
+            return null;
+        }
+
+        ownAttributes();
         return attributes.get( key );
     }
 
     public Attribute removeAttribute( String key )
     {
+        if ( attributes == NO_ATTRIBUTES )
+        {
+            return null;
+        }
+
+        ownAttributes();
         return attributes.remove( key );
     }
 
@@ -273,10 +342,7 @@ public class Node
             return set;
         }
 
-        for ( String string : att.getValue().split( "\\s" ) )
-        {
-            set.add( string );
-        }
+        Collections.addAll( set, getStyleClasses( att ) );
 
         return set;
     }
@@ -289,7 +355,7 @@ public class Node
             return false;
         }
 
-        for ( String string : att.getValue().split( "\\s" ) )
+        for ( String string : getStyleClasses( att ) )
         {
             if ( clss.equals( string ) )
             {
@@ -321,31 +387,37 @@ public class Node
 
     public void addSegment( Segment segment )
     {
+        ownSegments();
         segments.add( segment );
     }
 
     public void addText( String text )
     {
+        ownSegments();
         segments.add( new Segment( text ) );
     }
 
     public List<Segment> getSegments()
     {
+        ownSegments();
         return segments;
     }
 
     public List<Node> getChildren()
     {
+        ownChildren();
         return children;
     }
 
     public void clearChildren()
     {
+        ownChildren();
         children.clear();
     }
 
     public void addChild( Node node )
     {
+        ownChildren();
         children.add( node );
     }
 
@@ -359,9 +431,10 @@ public class Node
         }
 
         // If no insertion happened at this node. Try to find them in child nodes.
-        if ( count == 0 )
+        if ( count == 0 && !children.isEmpty() && ( !sharedChildren || hasInsertion( insertionName ) ) )
         {
-            for ( Node node : getChildren() )
+            ownChildren();
+            for ( Node node : children )
             {
                 count += node.insert( insertionName, insertNode );
             }
@@ -370,6 +443,77 @@ public class Node
         return count;
     }
 
+    /**
+     * Insert all of the nodes, in order, the same as calling {@link #insert(String, Node)} for each.
+     */
+    public int insertAll( String insertionName, Collection<? extends Node> insertNodes )
+    {
+        int count = 0;
+        for ( Node insertNode : insertNodes )
+        {
+            count += insert( insertionName, insertNode );
+        }
+
+        return count;
+    }
+
+    /**
+     * Insert nodes that are only pulled from the iterator while rendering, so they never all have to be in memory at once. They can
+     * only be rendered once. If the name matches more than one insertion point, all of the nodes are rendered at the first of them
+     * and the others stay empty.
+     * <p>
+     * The nodes are only streamed when no hook is bound to a tag around the insertion point. A hook gets the hardened tag with all of
+     * its children, so under a hooked tag every node is pulled and held in memory before the hook runs.
+     * <p>
+     * Nothing closes the iterator if the node is never rendered, e.g. when the Block it was inserted into is dropped or rendering
+     * fails before reaching it. Use the Stream variant with a close handler, and close that Stream yourself in that case.
+     */
+    public int insert( String insertionName, Iterator<? extends Node> insertNodes )
+    {
+        return insertStreamed( insertionName, new StreamedNode( insertNodes, null ) );
+    }
+
+    public int insert( String insertionName, Spliterator<? extends Node> insertNodes )
+    {
+        return insert( insertionName, Spliterators.iterator( insertNodes ) );
+    }
+
+    /**
+     * Same as {@link #insert(String, Iterator)}, the stream is closed once it has been rendered, or right away if there is no insertion
+     * point to render it at. It is not closed if the node is never rendered (see {@link #insert(String, Iterator)}); a caller that may
+     * drop the Block unrendered should open the Stream in a try-with-resources, since closing it again afterwards does nothing.
+     */
+    public int insert( String insertionName, Stream<? extends Node> insertNodes )
+    {
+        return insertStreamed( insertionName, new StreamedNode( insertNodes.iterator(), insertNodes::close ) );
+    }
+
+    /**
+     * Insert a node per row, each built from its row only when it is about to be rendered (e.g. a Block with the row's variables).
+     */
+    public <T> int insert( String insertionName, Iterator<T> rows, Function<? super T, ? extends Node> rowBuilder )
+    {
+        return insert( insertionName, new Iterator<Node>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Node next()
+            {
+                return rowBuilder.apply( rows.next() );
+            }
+        } );
+    }
+
+    public <T> int insert( String insertionName, Stream<T> rows, Function<? super T, ? extends Node> rowBuilder )
+    {
+        return insert( insertionName, rows.map( rowBuilder ) );
+    }
+
     public int insert( String insertionName, String text )
     {
         Node rawNode = new Node( NodeType.rawText );
@@ -388,4 +532,216 @@ public class Node
 
         return this;
     }
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * Direct access to the children for rendering, without the side-effects a subclass may attach to {@link #getChildren()}.
+     */
+    List<Node> children()
+    {
+        return children;
+    }
+
+    /**
+     * Add all of the nodes with the child list sized for them up front.
+     */
+    void addChildren( Collection<? extends Node> nodes )
+    {
+        ownChildren();
+        if ( children instanceof ArrayList )
+        {
+            ( (ArrayList<Node>) children ).ensureCapacity( children.size() + nodes.size() );
+        }
+        children.addAll( nodes );
+    }
+
+    /**
+     * Read-only access to the attributes for rendering, without copying borrowed ones.
+     */
+    Map<String, Attribute> attributes()
+    {
+        return attributes;
+    }
+
+    /**
+     * Read-only access to the segments for rendering, without copying borrowed ones.
+     */
+    List<Segment> segments()
+    {
+        return segments;
+    }
+
+    /**
+     * Trim the collections of this Node and its descendants to their size and share tag names, attribute keys and class names with
+     * the other Nodes of the parser. Called once the tree becomes part of a {@link Template} and is no longer modified.
+     */
+    void compact( StringInterner interner )
+    {
+        tagName = interner.intern( tagName );
+
+        if ( attributes.isEmpty() )
+        {
+            attributes = NO_ATTRIBUTES;
+        }
+        else if ( attributes instanceof AttributeMap && !sharedAttributes )
+        {
+            ( (AttributeMap) attributes ).compact( interner );
+        }
+
+        if ( segments.isEmpty() )
+        {
+            segments = NO_SEGMENTS;
+        }
+        else if ( !sharedSegments )
+        {
+            if ( segments instanceof ArrayList )
+            {
+                ( (ArrayList<Segment>) segments ).trimToSize();
+            }
+            for ( Segment segment : segments )
+            {
+                if ( segment.getNode() != null )
+                {
+                    segment.getNode().compact( interner );
+                }
+            }
+        }
+
+        if ( children.isEmpty() )
+        {
+            children = NO_CHILDREN;
+        }
+        else if ( !sharedChildren )
+        {
+            if ( children instanceof ArrayList )
+            {
+                ( (ArrayList<Node>) children ).trimToSize();
+            }
+            for ( Node child : children )
+            {
+                child.compact( interner );
+            }
+        }
+    }
+
+    /**
+     * A light-weight copy that borrows the attributes, segments and children of the given Node and only copies each of them when it
+     * is about to be modified. The given Node must not be modified afterwards (e.g. it is part of a {@link Template}).
+     */
+    static Node share( Node node )
+    {
+        return node instanceof Block ? new Block( (Block) node ) : new Node( node, true );
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private static String[] getStyleClasses( Attribute att )
+    {
+        String[] classes = att instanceof ClassAttribute ? ( (ClassAttribute) att ).getClasses() : null;
+
+        return classes != null ? classes : att.getValue().split( "\\s" );
+    }
+
+    private void ownAttributes()
+    {
+        if ( attributes == NO_ATTRIBUTES )
+        {
+            attributes = new AttributeMap();
+            sharedAttributes = false;
+            return;
+        }
+        else if ( !sharedAttributes )
+        {
+            return;
+        }
+
+        Map<String, Attribute> shared = attributes;
+        attributes = new AttributeMap( shared.size() );
+        for ( Attribute att : shared.values() )
+        {
+            attributes.put( att.getKey(), new Attribute( att ) );
+        }
+        sharedAttributes = false;
+    }
+
+    private void ownSegments()
+    {
+        if ( segments == NO_SEGMENTS )
+        {
+            segments = new ArrayList<>( 2 );
+            sharedSegments = false;
+            return;
+        }
+        else if ( !sharedSegments )
+        {
+            return;
+        }
+
+        List<Segment> shared = segments;
+        segments = new ArrayList<>( shared.size() );
+        for ( Segment segment : shared )
+        {
+            Segment copy = new Segment( segment );
+            if ( copy.getNode() != null )
+            {
+                copy.setNode( share( copy.getNode() ) );
+            }
+            segments.add( copy );
+        }
+        sharedSegments = false;
+    }
+
+    /**
+     * The children themselves are borrowed again, so only the path down to a modified Node is ever copied.
+     */
+    private void ownChildren()
+    {
+        if ( children == NO_CHILDREN )
+        {
+            children = new ArrayList<>();
+            sharedChildren = false;
+            return;
+        }
+        else if ( !sharedChildren )
+        {
+            return;
+        }
+
+        List<Node> shared = children;
+        children = new ArrayList<>( shared.size() );
+        for ( Node child : shared )
+        {
+            children.add( share( child ) );
+        }
+        sharedChildren = false;
+    }
+
+    private int insertStreamed( String insertionName, StreamedNode streamed )
+    {
+        int count = insert( insertionName, streamed );
+        if ( count == 0 )
+        {
+            streamed.close();
+        }
+
+        return count;
+    }
+
+    private boolean hasInsertion( String insertionName )
+    {
+        for ( Node child : children )
+        {
+            if ( child.type == NodeType.insertion && insertionName.equals( child.tagName ) || child.hasInsertion( insertionName ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
 }
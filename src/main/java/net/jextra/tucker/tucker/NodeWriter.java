@@ -22,20 +22,74 @@
 package net.jextra.tucker.tucker;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
+import net.jextra.tucker.encoder.*;
 
 public class NodeWriter
 {
+    // ============================================================
+    // Enums
+    // ============================================================
+
+    public enum OutputMode
+    {
+        pretty, // indented, one tag per line
+        compact, // no indentation or newlines between tags, runs of whitespace in text collapsed
+        minified // compact and attribute values only quoted where HTML requires it
+    }
+
     // ============================================================
     // Fields
     // ============================================================
 
+    private static final int MAX_DEFERRED_CHARS = 64 * 1024;
+
     private PageContext pageContext;
     private ScopeContext scopeContext;
     private Translator translator;
+    private OutputMode outputMode = OutputMode.pretty;
+
+    private Output out;
+
+    // Depth of tags whose text whitespace must be kept (e.g. pre) while hardening in a compact mode.
+    private int preserveDepth;
+
+    // Depth of tags being hardened, which is how much deeper than the current indent they will be written.
+    private int hardenDepth;
+
+    // Plan currently being rendered, used to resolve its insertion points when a hooked subtree must be hardened.
+    private RenderPlan activePlan;
+    private Node[] activePoints;
+
+    // Custom tags of the Tucker of the Block being rendered, and what each instruction of its plan resolved to against them.
+    private HookIndex customIndex;
+    private Hook[] customHooks;
+
+    // Contexts of BatchHooks waiting to be run, and the output that follows their nodes while it waits (written to deferredTarget once
+    // the batches have run). Output captured for a CachingHook is never deferred. The batches are run before a streamed node is pulled,
+    // once more than MAX_DEFERRED_CHARS are kept, and at the end of the render.
+    private Map<BatchHook, Batch> batches;
+    private List<Deferred> deferred;
+    private Output deferredTarget;
+    private int captureDepth;
+
+    // AsyncHooks started during the current render, the ones that are not done yet are cancelled if the render fails.
+    private List<PendingNode> started;
+
+    // Node being hooked by writeHooked with the custom tag hook it resolved to, so it is not matched again.
+    private Node directNode;
+    private Hook directHook;
+
+    // Scope of the Block being rendered from its plan when it is laid out the same as the plan, so variables are read by slot.
+    private Scope slotScope;
 
-    private PrintWriter out;
+    // Reused by writeString so cleaning a value does not allocate a new String.
+    private StringBuilder scratch = new StringBuilder();
+
+    // Reused to encode CharSequence variables on their way to the output.
+    private StringBuilder encodeBuffer;
 
     // ============================================================
     // Constructors
@@ -50,6 +104,7 @@ public class NodeWriter
     {
         pageContext = other.pageContext;
         scopeContext = new ScopeContext( other.scopeContext );
+        outputMode = other.outputMode;
     }
 
     // ============================================================
@@ -80,6 +135,17 @@ public class NodeWriter
         this.translator = translator;
     }
 
+    public OutputMode getOutputMode()
+    {
+        return outputMode;
+    }
+
+    public NodeWriter setOutputMode( OutputMode outputMode )
+    {
+        this.outputMode = outputMode;
+        return this;
+    }
+
     public ScopeContext getScopeContext()
     {
         return scopeContext;
@@ -90,6 +156,20 @@ public class NodeWriter
         this.scopeContext = scopeContext;
     }
 
+    public boolean isInheritVariables()
+    {
+        return scopeContext.isInheritVariables();
+    }
+
+    /**
+     * Let inserted Blocks use the variables and booleans of the Blocks they are inserted into when they do not set them themselves.
+     */
+    public NodeWriter setInheritVariables( boolean inheritVariables )
+    {
+        scopeContext.setInheritVariables( inheritVariables );
+        return this;
+    }
+
     public int getIndent()
     {
         return scopeContext.getIndent();
@@ -103,38 +183,72 @@ public class NodeWriter
 
     public String render( Node node )
     {
-        List<Node> hardNodes = hardenNode( node );
-
-        StringWriter stringWriter = new StringWriter();
-        out = new PrintWriter( stringWriter );
-        for ( Node n : hardNodes )
+        StringBuilder builder = new StringBuilder();
+        try
         {
-            writeNode( n );
+            render( node, builder );
         }
-        out.close();
+        catch ( IOException e )
+        {
+            // A StringBuilder never throws.
+            throw new UncheckedIOException( e );
+        }
+
+        return builder.toString();
+    }
 
-        return stringWriter.toString();
+    /**
+     * Stream the rendered node into the given Appendable as it is produced.
+     */
+    public void render( Node node, Appendable appendable )
+        throws IOException
+    {
+        render( node, new Output( appendable ) );
+    }
+
+    /**
+     * Stream the rendered node into the given OutputStream as UTF-8. Static markup is written as it was encoded when the template was
+     * compiled. The stream is flushed but not closed.
+     */
+    public void render( Node node, OutputStream stream )
+        throws IOException
+    {
+        render( node, new ByteOutput( stream ) );
+    }
+
+    /**
+     * Same as {@link #render(Node, OutputStream)} but into a channel.
+     */
+    public void render( Node node, WritableByteChannel channel )
+        throws IOException
+    {
+        render( node, new ByteOutput( channel ) );
     }
 
     public void writeIndent()
     {
-        out.print( scopeContext.getIndentWhitespace() );
+        writeIndent( scopeContext.getIndent() );
     }
 
     public void writeIndent( int d )
     {
-        for ( int i = 0; i < d; i++ )
+        if ( outputMode == OutputMode.pretty )
         {
-            out.print( ScopeContext.INDENT_WHITESPACE );
+            out.write( ScopeContext.getIndentWhitespaceForDepth( d ) );
         }
     }
 
     public void writeString( String value )
     {
-        String string = cleanString( value );
-        if ( string != null )
+        if ( value == null )
         {
-            out.write( string );
+            return;
+        }
+
+        scratch.setLength( 0 );
+        if ( appendClean( value, scratch ) )
+        {
+            out.write( scratch );
         }
     }
 
@@ -145,145 +259,895 @@ public class NodeWriter
             return null;
         }
 
-        //
-        // Replace all replacement characters.
-        //
-        value = value.replace( Tucker.LEFT_BRACE, '{' );
-        value = value.replace( Tucker.RIGHT_BRACE, '}' );
-        value = value.replace( Tucker.BACK_TICK, '`' );
-        value = value.replace( "<", Tucker.LT );
-        value = value.replace( ">", Tucker.GT );
+        StringBuilder builder = new StringBuilder( value.length() + 16 );
 
-        //
-        // Replace variable values.
-        //
+        return appendClean( value, builder ) ? builder.toString() : null;
+    }
+
+    public void printNode( Node node, int depth )
+    {
+        if ( node == null )
+        {
+            return;
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        for ( int i = 0; i < depth; i++ )
+        {
+            prefix.append( ".   " );
+        }
+
+        StringBuilder atts = new StringBuilder();
+        for ( String key : node.getAttributes().keySet() )
+        {
+            Attribute att = node.getAttribute( key );
+            atts.append( String.format( " %s=\"%s\"", key, att == null ? "null" : att.getValue() ) );
+        }
+
+        //            if ( atts.length() > 0 )
+        //            {
+        //                XLog.infof( LogKey.TUCKER_PARSER, "%s|%s", prefix, atts );
+        //            }
+        for ( Node child : node.getChildren() )
+        {
+            printNode( child, depth + 1 );
+        }
+    }
+
+    // ----------
+    // protected
+    // ----------
+
+    protected String translate( String sourceString )
+    {
+        if ( sourceString == null || translator == null )
+        {
+            return sourceString;
+        }
+
+        try
+        {
+            String targetString = translator.translate( sourceString );
+
+            return targetString == null ? sourceString : targetString;
+        }
+        catch ( Exception e )
+        {
+            // Default is to fail the translation and do nothing.
+            return sourceString;
+        }
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    /**
+     * Single pass over the value that replaces the special characters, substitutes variables and booleans and translates phrases.
+     *
+     * @return false if the value should be considered null, which is the case if the only variable in an otherwise blank value was not
+     * set.
+     */
+    private boolean appendClean( String value, StringBuilder builder )
+    {
+        int start = builder.length();
         int varReplacedCount = 0;
         int varNotSetCount = 0;
-        Pattern varPattern = Pattern.compile(
-            "([^" + Tucker.VAR_START + "]*)" + Tucker.VAR_START + "([^" + Tucker.VAR_END + "]*)" + Tucker.VAR_END + "(.*)" );
-        for ( Matcher m = varPattern.matcher( value ); m.matches(); m = varPattern.matcher( value ) )
+        int phraseStart = -1;
+        for ( int i = 0; i < value.length(); i++ )
         {
-            String var = m.group( 2 );
-            String varValue = getVariable( var );
-            if ( varValue != null )
+            char c = value.charAt( i );
+            switch ( c )
             {
-                varReplacedCount++;
-                value = m.group( 1 ) + varValue + m.group( 3 );
-            }
-            else
-            {
-                varNotSetCount++;
-                value = m.group( 1 ) + m.group( 3 );
+                case Tucker.LEFT_BRACE:
+                    builder.append( '{' );
+                    break;
+
+                case Tucker.RIGHT_BRACE:
+                    builder.append( '}' );
+                    break;
+
+                case Tucker.BACK_TICK:
+                    builder.append( '`' );
+                    break;
+
+                case '<':
+                    builder.append( Tucker.LT );
+                    break;
+
+                case '>':
+                    builder.append( Tucker.GT );
+                    break;
+
+                case Tucker.VAR_START:
+                case Tucker.BOOL_START:
+                {
+                    int end = value.indexOf( c == Tucker.VAR_START ? Tucker.VAR_END : Tucker.BOOL_END, i + 1 );
+                    if ( end < 0 )
+                    {
+                        // Not terminated, leave as-is.
+                        builder.append( c );
+                        break;
+                    }
+
+                    String name = cleanName( value.substring( i + 1, end ) );
+                    if ( c == Tucker.VAR_START )
+                    {
+                        String varValue = getVariable( name );
+                        if ( varValue != null )
+                        {
+                            varReplacedCount++;
+                            builder.append( varValue );
+                        }
+                        else
+                        {
+                            varNotSetCount++;
+                        }
+                    }
+                    else if ( getBoolean( name ) )
+                    {
+                        varReplacedCount++;
+                        builder.append( name );
+                    }
+                    else
+                    {
+                        varNotSetCount++;
+                    }
+                    i = end;
+                    break;
+                }
+
+                // Phrase markers are always removed. The phrase is only translated if there is a translator and it is terminated.
+                case Tucker.PHRASE_START:
+                    if ( translator != null && phraseStart < 0 && value.indexOf( Tucker.PHRASE_END, i + 1 ) >= 0 )
+                    {
+                        phraseStart = builder.length();
+                    }
+                    break;
+
+                case Tucker.PHRASE_END:
+                    if ( phraseStart >= 0 )
+                    {
+                        String phrase = builder.substring( phraseStart );
+                        builder.setLength( phraseStart );
+                        builder.append( translate( phrase ) );
+                        phraseStart = -1;
+                    }
+                    break;
+
+                default:
+                    builder.append( c );
+                    break;
             }
         }
 
         //
-        // Replace boolean values.
+        // Special case if the single variable was never set, the value should be null (not "").
         //
-        Pattern boolPattern = Pattern.compile(
-            "([^" + Tucker.BOOL_START + "]*)" + Tucker.BOOL_START + "([^" + Tucker.BOOL_END + "]*)" + Tucker.BOOL_END + "(.*)" );
-        for ( Matcher m = boolPattern.matcher( value ); m.matches(); m = boolPattern.matcher( value ) )
+        if ( varReplacedCount == 0 && varNotSetCount == 1 )
         {
-            String var = m.group( 2 );
-            boolean boolValue = getBoolean( var );
-            if ( boolValue )
+            for ( int i = start; i < builder.length(); i++ )
             {
-                varReplacedCount++;
-                value = m.group( 1 ) + var + m.group( 3 );
+                if ( builder.charAt( i ) > ' ' )
+                {
+                    return true;
+                }
             }
-            else
+
+            builder.setLength( start );
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Variable names rarely contain special characters, so only allocate a cleaned copy if they do.
+     */
+    private String cleanName( String name )
+    {
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            switch ( name.charAt( i ) )
             {
-                varNotSetCount++;
-                value = m.group( 1 ) + m.group( 3 );
+                case Tucker.LEFT_BRACE:
+                case Tucker.RIGHT_BRACE:
+                case Tucker.BACK_TICK:
+                case '<':
+                case '>':
+                    return Expression.cleanLiteral( name );
             }
         }
 
-        //
-        // Translate any phrases on the line.
-        //
-        if ( translator != null )
+        return name;
+    }
+
+    private void render( Node node, Output output )
+        throws IOException
+    {
+        Output oldOut = out;
+        List<PendingNode> oldStarted = started;
+        out = output;
+        started = null;
+        scopeContext.clearSupplied();
+        boolean rendered = false;
+        try
+        {
+            renderNode( node, getIndent() );
+            writeDeferred();
+            out.flush();
+            rendered = true;
+        }
+        catch ( Output.Failure e )
         {
-            Pattern phrasePattern = Pattern.compile(
-                "([^" + Tucker.PHRASE_START + "]*)" + Tucker.PHRASE_START + "([^" + Tucker.PHRASE_END + "]*)" + Tucker.PHRASE_END + "(.*)" );
-            for ( Matcher m = phrasePattern.matcher( value ); m.matches(); m = phrasePattern.matcher( value ) )
+            throw e.getCause();
+        }
+        finally
+        {
+            if ( !rendered && started != null )
             {
-                value = m.group( 1 ) + translate( m.group( 2 ) ) + m.group( 3 );
+                for ( PendingNode pending : started )
+                {
+                    pending.cancel();
+                }
             }
+            out = oldOut;
+            started = oldStarted;
+            batches = null;
+            deferred = null;
+            deferredTarget = null;
         }
+    }
 
-        // Clear our the phrase markers if they were not replaced.
-        value = value.replaceAll( "" + Tucker.PHRASE_START, "" );
-        value = value.replaceAll( "" + Tucker.PHRASE_END, "" );
+    /**
+     * Render a Block from its compiled plan if it has one, otherwise harden the Node and write it.
+     */
+    private void renderNode( Node node, int indent )
+    {
+        scopeContext.setIndent( indent );
+        if ( node instanceof Block && getPlan( (Block) node ) != null )
+        {
+            writePlan( (Block) node );
+            return;
+        }
 
-        //
-        // Special case if the single variable was never set, the value should be null (not "").
-        //
-        if ( varReplacedCount == 0 && varNotSetCount == 1 && value.trim().isEmpty() )
+        for ( Node n : hardenNode( node ) )
+        {
+            writeNode( n );
+        }
+    }
+
+    /**
+     * The Block's plan compiled for the output mode. Only Blocks of a Template have plans for the other modes.
+     */
+    private RenderPlan getPlan( Block block )
+    {
+        if ( outputMode == OutputMode.pretty )
+        {
+            return block.getPlan();
+        }
+        else if ( block.getPlan() == null || block.getTemplate() == null )
         {
             return null;
         }
 
-        return value;
+        return block.getTemplate().getPlan( outputMode );
     }
 
-    public void printNode( Node node, int depth )
+    /**
+     * Single linear pass over the instructions of the Block's plan.
+     */
+    private void writePlan( Block block )
     {
-        if ( node == null )
+        RenderPlan oldPlan = activePlan;
+        Node[] oldPoints = activePoints;
+        Scope oldSlotScope = slotScope;
+        HookIndex oldCustomIndex = customIndex;
+        Hook[] oldCustomHooks = customHooks;
+        activePlan = getPlan( block );
+        activePoints = block.getInsertionPoints();
+        slotScope = block.getScope().getLayout() == activePlan.getLayout() ? block.getScope() : null;
+        if ( block.getTemplate() != null )
+        {
+            customIndex = block.getTemplate().getCustomTags();
+            customHooks = block.getTemplate().getCustomHooks( activePlan );
+        }
+        else
+        {
+            customHooks = null;
+        }
+
+        scopeContext.push( block.getScope() );
+        int indent = scopeContext.getIndent();
+        HookIndex hooks = block.getScope().getHookIndex();
+
+        RenderPlan.Instruction[] instructions = activePlan.getInstructions();
+        Hook[] planHooks = null;
+        List<List<Node>> started = null;
+        if ( hooks.hasAsyncHooks() || ( customIndex != null && customIndex.hasAsyncHooks() ) )
+        {
+            // Find the hooks up front so all async hooks of the Block run while the rest of it is written.
+            planHooks = new Hook[instructions.length];
+            started = new ArrayList<>( Collections.nCopies( instructions.length, null ) );
+            for ( int pc = 0; pc < instructions.length; pc++ )
+            {
+                if ( instructions[pc].getOp() == RenderPlan.Op.tag )
+                {
+                    planHooks[pc] = findPlanHook( pc, instructions[pc], hooks );
+                    if ( planHooks[pc] instanceof AsyncHook )
+                    {
+                        started.set( pc, hardenHooked( instructions[pc], indent, planHooks[pc] ) );
+                    }
+                    if ( planHooks[pc] != null )
+                    {
+                        pc = instructions[pc].getEnd() - 1;
+                    }
+                }
+            }
+        }
+
+        for ( int pc = 0; pc < instructions.length; pc++ )
+        {
+            RenderPlan.Instruction in = instructions[pc];
+            switch ( in.getOp() )
+            {
+                case text:
+                    out.write( in.getText(), in.getBytes() );
+                    break;
+
+                case indent:
+                    writeIndent( indent + in.getDepth() );
+                    break;
+
+                case tag:
+                {
+                    Hook hook = planHooks == null ? findPlanHook( pc, in, hooks ) : planHooks[pc];
+                    if ( hook != null )
+                    {
+                        List<Node> hardNodes = started == null ? null : started.get( pc );
+                        writeHooked( in, indent, hardNodes == null ? hardenHooked( in, indent, hook ) : hardNodes );
+                        pc = in.getEnd() - 1;
+                    }
+                    break;
+                }
+
+                case expression:
+                    writeExpression( in.getExpression() );
+                    break;
+
+                case attribute:
+                    writeAttribute( in.getExpression(), in.getValue() );
+                    break;
+
+                case childrenStart:
+                    if ( hasInsertions( in.getSlots() ) )
+                    {
+                        out.newline();
+                    }
+                    break;
+
+                case childrenEnd:
+                    if ( hasInsertions( in.getSlots() ) )
+                    {
+                        writeIndent( indent + in.getDepth() );
+                    }
+                    break;
+
+                case insertion:
+                    for ( Node child : activePoints[in.getSlot()].children() )
+                    {
+                        if ( child instanceof StreamedNode )
+                        {
+                            // Pull, render and forget one node at a time.
+                            StreamedNode streamed = (StreamedNode) child;
+                            try
+                            {
+                                flushDeferred( true );
+                                while ( streamed.hasNext() )
+                                {
+                                    renderNode( streamed.next(), indent + in.getDepth() );
+                                    flushDeferred( true );
+                                }
+                            }
+                            finally
+                            {
+                                streamed.close();
+                            }
+                        }
+                        else
+                        {
+                            renderNode( child, indent + in.getDepth() );
+                            flushDeferred( false );
+                        }
+                    }
+                    break;
+
+                case node:
+                    renderNode( in.getNode(), indent + in.getDepth() );
+                    break;
+            }
+        }
+
+        scopeContext.setIndent( indent );
+        scopeContext.pop();
+        activePlan = oldPlan;
+        activePoints = oldPoints;
+        slotScope = oldSlotScope;
+        customIndex = oldCustomIndex;
+        customHooks = oldCustomHooks;
+    }
+
+    /**
+     * Hook bound to the plan tag, either by the Block or as a custom tag.
+     */
+    private Hook findPlanHook( int pc, RenderPlan.Instruction in, HookIndex hooks )
+    {
+        Hook hook = null;
+        if ( hooks.mayMatch( in.getNode().getTagName() ) )
+        {
+            hook = findTemplateHook( in.getNode(), hooks );
+        }
+
+        Hook custom = getCustomHook( pc, in.getNode() );
+        if ( hook == null && custom == HookIndex.DYNAMIC )
+        {
+            hook = findTemplateHook( in.getNode(), customIndex );
+        }
+        else if ( hook == null )
+        {
+            hook = custom;
+        }
+
+        return hook;
+    }
+
+    /**
+     * Fall back to hardening the subtree of a plan tag that is bound to the hook.
+     */
+    private List<Node> hardenHooked( RenderPlan.Instruction in, int indent, Hook hook )
+    {
+        int oldIndent = scopeContext.getIndent();
+        scopeContext.setIndent( indent + in.getDepth() );
+        directNode = in.getNode();
+        directHook = hook;
+        List<Node> hardNodes = hardenNode( in.getNode() );
+        directNode = null;
+        directHook = null;
+        scopeContext.setIndent( oldIndent );
+
+        return hardNodes;
+    }
+
+    private void writeHooked( RenderPlan.Instruction in, int indent, List<Node> hardNodes )
+    {
+        int oldIndent = scopeContext.getIndent();
+        scopeContext.setIndent( indent + in.getDepth() );
+        if ( in.isInline() )
+        {
+            // Same as an inline segment, only one node is expected.
+            if ( !hardNodes.isEmpty() )
+            {
+                writeNode( hardNodes.get( 0 ) );
+            }
+        }
+        else
+        {
+            for ( Node n : hardNodes )
+            {
+                writeNode( n );
+            }
+        }
+        scopeContext.setIndent( oldIndent );
+    }
+
+    /**
+     * Custom tag hook the instruction's node resolved to when the Template was compiled, or when the plan is not the Template's own
+     * {@link HookIndex#DYNAMIC} for any tag a custom tag might match.
+     */
+    private Hook getCustomHook( int pc, Node node )
+    {
+        if ( customHooks != null )
+        {
+            return customHooks[pc];
+        }
+        else if ( customIndex != null && customIndex.mayMatch( node.getTagName() ) )
+        {
+            return HookIndex.DYNAMIC;
+        }
+
+        return null;
+    }
+
+    /**
+     * Only the tag name, id and class of a template node are needed to find a matching hook.
+     */
+    private Hook findTemplateHook( Node node, HookIndex index )
+    {
+        Node test = new Node( Node.NodeType.tag );
+        test.setTagName( cleanString( node.getTagName() ) );
+        test.addAttribute( hardenAttributes( node.attributes().get( Node.ATT_ID ) ) );
+        test.addAttribute( hardenAttributes( node.attributes().get( Node.ATT_CLASS ) ) );
+
+        return index.find( test );
+    }
+
+    private boolean hasInsertions( int[] slots )
+    {
+        for ( int slot : slots )
+        {
+            for ( Node child : activePoints[slot].children() )
+            {
+                if ( !( child instanceof StreamedNode ) || ( (StreamedNode) child ).hasNext() )
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private Node resolveInsertionPoint( Node node )
+    {
+        if ( activePlan == null )
+        {
+            return node;
+        }
+
+        int slot = activePlan.getInsertionSlot( node );
+
+        return slot < 0 ? node : activePoints[slot];
+    }
+
+    private void writeAttribute( Expression key, Expression value )
+    {
+        String keyString;
+        if ( key.isStatic() )
         {
+            keyString = key.getStaticValue();
+        }
+        else
+        {
+            keyString = evaluate( key );
+            if ( keyString == null || keyString.trim().isEmpty() )
+            {
+                return;
+            }
+        }
+
+        // This is the case where the key is specified by itself with no equals (e.g. checked)
+        if ( value == null )
+        {
+            out.write( ' ' );
+            writeValue( keyString );
             return;
         }
 
-        StringBuilder prefix = new StringBuilder();
-        for ( int i = 0; i < depth; i++ )
+        // Special case, Instead of something like checked="", this simply means no attribute.
+        if ( isNull( value ) )
         {
-            prefix.append( ".   " );
+            return;
         }
 
-        StringBuilder atts = new StringBuilder();
-        for ( String key : node.getAttributes().keySet() )
+        out.write( ' ' );
+        writeValue( keyString );
+        if ( outputMode == OutputMode.minified )
         {
-            Attribute att = node.getAttribute( key );
-            atts.append( String.format( " %s=\"%s\"", key, att == null ? "null" : att.getValue() ) );
+            String valueString = evaluate( value );
+            out.write( '=' );
+            if ( RenderPlan.needsQuotes( valueString ) )
+            {
+                out.write( '"' );
+                writeValue( valueString );
+                out.write( '"' );
+            }
+            else
+            {
+                writeValue( valueString );
+            }
+            return;
         }
+        out.write( "=\"" );
+        writeParts( value );
+        out.write( '"' );
+    }
 
-        //            if ( atts.length() > 0 )
-        //            {
-        //                XLog.infof( LogKey.TUCKER_PARSER, "%s|%s", prefix, atts );
-        //            }
-        for ( Node child : node.getChildren() )
+    private void writeExpression( Expression expression )
+    {
+        if ( expression.isStatic() )
         {
-            printNode( child, depth + 1 );
+            out.write( expression.getStaticValue() );
+        }
+        else if ( !isNull( expression ) )
+        {
+            writeParts( expression );
+        }
+    }
+
+    /**
+     * Write the parts of the expression. Substituted values are cleaned as they are written, just like the second cleanString of the
+     * hardened tree used to do.
+     */
+    private void writeParts( Expression expression )
+    {
+        for ( Expression.Part part : expression.getParts() )
+        {
+            switch ( part.getType() )
+            {
+                case text:
+                    out.write( part.getValue() );
+                    break;
+
+                case variable:
+                    if ( slotScope != null )
+                    {
+                        writeVariable( part );
+                    }
+                    else
+                    {
+                        String value = getVariable( part );
+                        if ( value != null )
+                        {
+                            writeValue( value );
+                        }
+                    }
+                    break;
+
+                case bool:
+                    if ( getBoolean( part ) )
+                    {
+                        out.write( part.getValue() );
+                    }
+                    break;
+
+                case phrase:
+                    if ( translator == null )
+                    {
+                        writeParts( part.getPhrase() );
+                    }
+                    else
+                    {
+                        StringBuilder builder = new StringBuilder();
+                        appendParts( part.getPhrase(), builder, new int[2] );
+                        writeValue( translate( builder.toString() ) );
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Same "single unset variable means null" rule as {@link #cleanString(String)}.
+     */
+    private boolean isNull( Expression expression )
+    {
+        if ( !expression.canBeNull() )
+        {
+            return false;
+        }
+        else if ( expression.hasPhrase() )
+        {
+            return evaluate( expression ) == null;
+        }
+
+        for ( Expression.Part part : expression.getParts() )
+        {
+            switch ( part.getType() )
+            {
+                case variable:
+                    if ( slotScope != null && slotScope.getVariableKind( part.getSlot() ) != Scope.VAR_UNSET )
+                    {
+                        return getSlotKind( part.getSlot() ) == Scope.VAR_NULL;
+                    }
+                    return getVariable( part ) == null;
+
+                case bool:
+                    return !getBoolean( part );
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Evaluate the expression to the same String cleanString would produce.
+     */
+    private String evaluate( Expression expression )
+    {
+        StringBuilder builder = new StringBuilder();
+        int[] counts = new int[2];
+        appendParts( expression, builder, counts );
+        String value = builder.toString();
+
+        if ( counts[0] == 0 && counts[1] == 1 && value.trim().isEmpty() )
+        {
+            return null;
+        }
+
+        return value;
+    }
+
+    /**
+     * @param counts [0] = number of variables replaced, [1] = number of variables not set.
+     */
+    private void appendParts( Expression expression, StringBuilder builder, int[] counts )
+    {
+        for ( Expression.Part part : expression.getParts() )
+        {
+            switch ( part.getType() )
+            {
+                case text:
+                    builder.append( part.getValue() );
+                    break;
+
+                case variable:
+                {
+                    String value = getVariable( part );
+                    if ( value != null )
+                    {
+                        counts[0]++;
+                        builder.append( value );
+                    }
+                    else
+                    {
+                        counts[1]++;
+                    }
+                    break;
+                }
+
+                case bool:
+                    if ( getBoolean( part ) )
+                    {
+                        counts[0]++;
+                        builder.append( part.getValue() );
+                    }
+                    else
+                    {
+                        counts[1]++;
+                    }
+                    break;
+
+                case phrase:
+                    if ( translator == null )
+                    {
+                        appendParts( part.getPhrase(), builder, counts );
+                    }
+                    else
+                    {
+                        StringBuilder phrase = new StringBuilder();
+                        appendParts( part.getPhrase(), phrase, counts );
+                        builder.append( translate( phrase.toString() ) );
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Write the variable in the slot of the block's scope straight to the output, so numbers and CharSequences never become Strings.
+     */
+    private void writeVariable( Expression.Part part )
+    {
+        int slot = part.getSlot();
+        switch ( slotScope.getVariableKind( slot ) )
+        {
+            case Scope.VAR_UNSET:
+            {
+                String value = scopeContext.getInheritedVariable( part.getValue() );
+                if ( value != null )
+                {
+                    writeValue( value );
+                }
+                break;
+            }
+
+            case Scope.VAR_LONG:
+                out.write( slotScope.getLong( slot ) );
+                break;
+
+            case Scope.VAR_DOUBLE:
+                out.write( slotScope.getDouble( slot ) );
+                break;
+
+            case Scope.VAR_TEXT:
+            {
+                CharSequence text = slotScope.getText( slot );
+                if ( text instanceof String || Encoder.indexOfHtmlEscape( text ) < 0 )
+                {
+                    // Strings are encoded once and kept by the scope.
+                    writeValue( text instanceof String ? slotScope.getVariable( slot ) : text );
+                }
+                else
+                {
+                    if ( encodeBuffer == null )
+                    {
+                        encodeBuffer = new StringBuilder();
+                    }
+                    encodeBuffer.setLength( 0 );
+                    Encoder.encodeForHtml( text, encodeBuffer );
+                    writeValue( encodeBuffer );
+                }
+                break;
+            }
+
+            case Scope.VAR_RAW_TEXT:
+                writeValue( slotScope.getText( slot ) );
+                break;
+
+            case Scope.VAR_SUPPLIED:
+            {
+                Scope.Value value = slotScope.getSupplied( slot, scopeContext );
+                switch ( value.getKind() )
+                {
+                    case Scope.VAR_LONG:
+                        out.write( value.getNumber() );
+                        break;
+
+                    case Scope.VAR_DOUBLE:
+                        out.write( Double.longBitsToDouble( value.getNumber() ) );
+                        break;
+
+                    case Scope.VAR_TEXT:
+                        writeValue( value.getString() );
+                        break;
+                }
+                break;
+            }
         }
     }
 
-    // ----------
-    // protected
-    // ----------
+    /**
+     * Kind of the variable in the slot of the block's scope, with a supplied value resolved to the kind of what it supplied.
+     */
+    private byte getSlotKind( int slot )
+    {
+        byte kind = slotScope.getVariableKind( slot );
 
-    protected String translate( String sourceString )
+        return kind == Scope.VAR_SUPPLIED ? slotScope.getSupplied( slot, scopeContext ).getKind() : kind;
+    }
+
+    /**
+     * Write a substituted value, replacing the special characters the same way {@link #cleanString(String)} does.
+     */
+    private void writeValue( CharSequence value )
     {
-        if ( sourceString == null || translator == null )
+        int start = 0;
+        for ( int i = 0; i < value.length(); i++ )
         {
-            return sourceString;
-        }
+            String replacement;
+            switch ( value.charAt( i ) )
+            {
+                case Tucker.LEFT_BRACE:
+                    replacement = "{";
+                    break;
 
-        try
-        {
-            String targetString = translator.translate( sourceString );
+                case Tucker.RIGHT_BRACE:
+                    replacement = "}";
+                    break;
 
-            return targetString == null ? sourceString : targetString;
-        }
-        catch ( Exception e )
-        {
-            // Default is to fail the translation and do nothing.
-            return sourceString;
+                case Tucker.BACK_TICK:
+                    replacement = "`";
+                    break;
+
+                case '<':
+                    replacement = Tucker.LT;
+                    break;
+
+                case '>':
+                    replacement = Tucker.GT;
+                    break;
+
+                default:
+                    continue;
+            }
+
+            out.write( value, start, i - start );
+            out.write( replacement );
+            start = i + 1;
         }
+        out.write( value, start, value.length() - start );
     }
 
-    // ----------
-    // private
-    // ----------
-
     /**
      * Substitute all variables with values.
      */
@@ -297,33 +1161,78 @@ public class NodeWriter
                 // Create block scope
                 Block block = (Block) node;
                 scopeContext.push( block.getScope() );
+                RenderPlan oldPlan = activePlan;
+                Node[] oldPoints = activePoints;
+                HookIndex oldCustomIndex = customIndex;
+                if ( block.getTemplate() != null )
+                {
+                    customIndex = block.getTemplate().getCustomTags();
+                }
+                if ( block.getPlan() != null )
+                {
+                    activePlan = block.getPlan();
+                    activePoints = block.getInsertionPoints();
+                }
 
                 // Block nodes are kept to signal the scope.
                 Node hardNode = hardenBlock( block );
-                for ( Node hardChild : hardenChildren( node ) )
+                for ( Node hardChild : hardenChildren( block.structure() ) )
                 {
                     hardNode.addChild( hardChild );
                 }
                 list.add( hardNode );
 
                 // Pop scope
+                activePlan = oldPlan;
+                activePoints = oldPoints;
+                customIndex = oldCustomIndex;
                 scopeContext.pop();
                 break;
             }
 
             case tag:
             {
+                boolean preserve = outputMode != OutputMode.pretty && RenderPlan.preservesWhitespace( node.getTagName() );
+                if ( preserve )
+                {
+                    preserveDepth++;
+                }
+
                 Node hardNode = hardenTagNode( node );
+                hardenDepth++;
                 for ( Node hardChild : hardenChildren( node ) )
                 {
                     hardNode.addChild( hardChild );
                 }
+                hardenDepth--;
+
+                if ( preserve )
+                {
+                    preserveDepth--;
+                }
 
-                // If the node is bound to a hook do the replacement.
-                Hook hook = scopeContext.findHook( hardNode );
-                if ( hook != null )
+                // If the node is bound to a hook do the replacement. Hooks bound to the Block come before the custom tags.
+                Hook hook = node == directNode ? directHook : scopeContext.findHook( hardNode );
+                if ( hook == null && customIndex != null )
+                {
+                    hook = customIndex.find( hardNode );
+                }
+                List<Node> cachedNodes = hook instanceof CachingHook ? hardenCachingHook( (CachingHook) hook, hardNode ) : null;
+                if ( cachedNodes != null )
+                {
+                    list.addAll( cachedNodes );
+                }
+                else if ( hook instanceof AsyncHook )
+                {
+                    list.add( startAsyncHook( (AsyncHook) hook, hardNode ) );
+                }
+                else if ( hook instanceof BatchHook )
+                {
+                    list.add( queueBatchHook( (BatchHook) hook, hardNode ) );
+                }
+                else if ( hook != null )
                 {
-                    Node newNode = performHook( hook, hardNode );
+                    Node newNode = performHook( hook, new HookContext( pageContext, scopeContext, hardNode ) );
                     if ( newNode != null )
                     {
                         List<Node> hardNodes = hardenNode( newNode );
@@ -345,8 +1254,26 @@ public class NodeWriter
 
             case insertion:
             {
+                // Without a plan the streamed nodes can only be hardened all together.
+                if ( node instanceof StreamedNode )
+                {
+                    StreamedNode streamed = (StreamedNode) node;
+                    try
+                    {
+                        while ( streamed.hasNext() )
+                        {
+                            list.addAll( hardenNode( streamed.next() ) );
+                        }
+                    }
+                    finally
+                    {
+                        streamed.close();
+                    }
+                    break;
+                }
+
                 // Insertion nodes are removed and the outcome are its children.
-                for ( Node hardChild : hardenChildren( node ) )
+                for ( Node hardChild : hardenChildren( resolveInsertionPoint( node ) ) )
                 {
                     list.add( hardChild );
                 }
@@ -368,7 +1295,7 @@ public class NodeWriter
     private List<Node> hardenChildren( Node parent )
     {
         ArrayList<Node> list = new ArrayList<>();
-        for ( Node child : parent.getChildren() )
+        for ( Node child : parent.children() )
         {
             List<Node> outcome = hardenNode( child );
             if ( outcome != null && !outcome.isEmpty() )
@@ -386,7 +1313,7 @@ public class NodeWriter
         hardNode.setTagName( src.getTagName() );
         hardNode.setScope( new Scope( src.getScope() ) );
 
-        for ( Attribute att : src.getAttributes().values() )
+        for ( Attribute att : src.attributes().values() )
         {
             hardNode.addAttribute( hardenAttributes( att ) );
         }
@@ -400,12 +1327,12 @@ public class NodeWriter
         hardNode.setTagName( src.getTagName() );
         hardNode.setInline( src.isInline() );
 
-        for ( Attribute att : src.getAttributes().values() )
+        for ( Attribute att : src.attributes().values() )
         {
             hardNode.addAttribute( hardenAttributes( att ) );
         }
 
-        for ( Segment seg : src.getSegments() )
+        for ( Segment seg : src.segments() )
         {
             Segment hardSeg = hardenSegment( seg );
             if ( hardSeg != null )
@@ -452,6 +1379,11 @@ public class NodeWriter
         switch ( seg.getType() )
         {
             case text:
+                // Collapse the markup's whitespace before the values are filled in, the same as a compiled plan does.
+                if ( outputMode != OutputMode.pretty && preserveDepth == 0 )
+                {
+                    return new Segment( cleanString( RenderPlan.collapseWhitespace( seg.getValue() ) ) );
+                }
                 return new Segment( cleanString( seg.getValue() ) );
 
             case inline:
@@ -475,6 +1407,28 @@ public class NodeWriter
      */
     private void writeNode( Node node )
     {
+        if ( node instanceof RenderedNode )
+        {
+            HookCache.Entry entry = ( (RenderedNode) node ).getEntry();
+            out.write( entry.getText(), entry.getBytes() );
+            return;
+        }
+        else if ( node instanceof PendingNode )
+        {
+            PendingNode pending = (PendingNode) node;
+            if ( pending.isBatchPending() && captureDepth == 0 )
+            {
+                defer( pending );
+                return;
+            }
+
+            for ( Node n : hardenPending( pending ) )
+            {
+                writeNode( n );
+            }
+            return;
+        }
+
         switch ( node.getNodeType() )
         {
             case block:
@@ -494,9 +1448,9 @@ public class NodeWriter
             {
                 writeTagStart( node );
                 writeSegments( node );
-                if ( !node.getChildren().isEmpty() )
+                if ( !node.children().isEmpty() )
                 {
-                    out.println();
+                    writeNewline();
                 }
                 int childCount = writeChildren( node, getIndent() + 1 );
                 writeTagEnd( node, childCount > 0 );
@@ -514,7 +1468,7 @@ public class NodeWriter
             {
                 writeIndent();
                 out.write( node.getRawText() );
-                out.println();
+                out.newline();
                 break;
             }
         }
@@ -543,7 +1497,7 @@ public class NodeWriter
             writeAttribute( node.getAttribute( "class" ) );
         }
 
-        for ( Attribute att : node.getAttributes().values() )
+        for ( Attribute att : node.attributes().values() )
         {
             if ( "id".equals( att.getKey() ) || "class".equals( att.getKey() ) )
             {
@@ -571,7 +1525,7 @@ public class NodeWriter
         // This is the case where the key is specified by itself with no equals (e.g. checked)
         if ( att.getValue() == null )
         {
-            out.print( " " );
+            out.write( ' ' );
             writeString( key );
         }
         else
@@ -583,18 +1537,26 @@ public class NodeWriter
             }
             else
             {
-                out.print( " " );
+                out.write( ' ' );
                 writeString( key );
-                out.print( "=\"" );
-                writeString( value );
-                out.print( "\"" );
+                if ( outputMode == OutputMode.minified && !RenderPlan.needsQuotes( value ) )
+                {
+                    out.write( '=' );
+                    writeString( value );
+                }
+                else
+                {
+                    out.write( "=\"" );
+                    writeString( value );
+                    out.write( '"' );
+                }
             }
         }
     }
 
     private void writeSegments( Node node )
     {
-        for ( Segment segment : node.getSegments() )
+        for ( Segment segment : node.segments() )
         {
             switch ( segment.getType() )
             {
@@ -638,7 +1600,18 @@ public class NodeWriter
         out.write( ">" );
         if ( !node.isInline() )
         {
-            out.println();
+            writeNewline();
+        }
+    }
+
+    /**
+     * Newline between tags, which only the pretty output has.
+     */
+    private void writeNewline()
+    {
+        if ( outputMode == OutputMode.pretty )
+        {
+            out.newline();
         }
     }
 
@@ -647,19 +1620,276 @@ public class NodeWriter
         return scopeContext.getVariable( name );
     }
 
+    private String getVariable( Expression.Part part )
+    {
+        if ( slotScope == null )
+        {
+            return scopeContext.getVariable( part.getValue() );
+        }
+        else if ( slotScope.getVariableKind( part.getSlot() ) == Scope.VAR_UNSET )
+        {
+            return scopeContext.getInheritedVariable( part.getValue() );
+        }
+
+        return slotScope.getVariable( part.getSlot(), scopeContext );
+    }
+
+    private boolean getBoolean( Expression.Part part )
+    {
+        if ( slotScope == null )
+        {
+            return scopeContext.getBoolean( part.getValue() );
+        }
+        else if ( !slotScope.hasBoolean( part.getSlot() ) )
+        {
+            return scopeContext.getInheritedBoolean( part.getValue() );
+        }
+
+        return slotScope.getBoolean( part.getSlot() );
+    }
+
     private boolean getBoolean( String name )
     {
         return scopeContext.getBoolean( name );
     }
 
-    private Node performHook( Hook hook, Node node )
+    /**
+     * The output of the hook for its cache key, rendered (at the indent the hooked node will be written at) and kept in its cache when
+     * it is not there yet. Null if the hook does not give a key.
+     */
+    private List<Node> hardenCachingHook( CachingHook hook, Node hardNode )
+    {
+        HookContext ctx = new HookContext( pageContext, scopeContext, hardNode );
+        Object cacheKey;
+        try
+        {
+            cacheKey = hook.getCacheKey( ctx );
+        }
+        catch ( Exception e )
+        {
+            throw new RuntimeException( e );
+        }
+
+        if ( cacheKey == null )
+        {
+            return null;
+        }
+
+        int indent = outputMode == OutputMode.pretty ? scopeContext.getIndent() + hardenDepth : 0;
+        HookCache cache = hook.getHookCache();
+        HookCache.Key key = new HookCache.Key( hook, cacheKey, translator, outputMode, indent, preserveDepth > 0 );
+        HookCache.Entry entry = cache.get( key );
+        if ( entry == null )
+        {
+            List<Node> hardNodes = hardenNode( performHook( hook, ctx ) );
+
+            StringBuilder text = new StringBuilder();
+            Output oldOut = out;
+            int oldIndent = scopeContext.getIndent();
+            out = new Output( text );
+            scopeContext.setIndent( indent );
+            captureDepth++;
+            try
+            {
+                for ( Node n : hardNodes )
+                {
+                    writeNode( n );
+                }
+            }
+            finally
+            {
+                captureDepth--;
+                out = oldOut;
+                scopeContext.setIndent( oldIndent );
+            }
+            entry = cache.put( key, text.toString() );
+        }
+
+        return Collections.singletonList( new RenderedNode( entry ) );
+    }
+
+    /**
+     * Start the hook and keep what is needed to harden its outcome once it is written.
+     */
+    private PendingNode startAsyncHook( AsyncHook hook, Node hardNode )
+    {
+        HookContext ctx = new HookContext( pageContext, scopeContext, hardNode );
+        CompletableFuture<Node> future;
+        try
+        {
+            future = hook.doHookAsync( ctx );
+        }
+        catch ( Exception e )
+        {
+            throw new RuntimeException( e );
+        }
+
+        PendingNode pending = new PendingNode( hook, ctx, future == null ? CompletableFuture.completedFuture( null ) : future,
+            hook.getTimeout(), false, preserveDepth, customIndex, activePlan, activePoints );
+        if ( started == null )
+        {
+            started = new ArrayList<>();
+        }
+        started.add( pending );
+
+        return pending;
+    }
+
+    /**
+     * Add the node to the batch of its hook, which is run once the output kept for it is flushed (see flushDeferred).
+     */
+    private PendingNode queueBatchHook( BatchHook hook, Node hardNode )
+    {
+        if ( batches == null )
+        {
+            batches = new LinkedHashMap<>();
+        }
+
+        HookContext ctx = new HookContext( pageContext, scopeContext, hardNode );
+        CompletableFuture<Node> future = batches.computeIfAbsent( hook, Batch::new ).add( ctx );
+
+        return new PendingNode( hook, ctx, future, 0, true, preserveDepth, customIndex, activePlan, activePoints );
+    }
+
+    private void runBatches()
+    {
+        if ( batches == null )
+        {
+            return;
+        }
+
+        Collection<Batch> open = batches.values();
+        batches = null;
+        for ( Batch batch : open )
+        {
+            batch.run();
+        }
+    }
+
+    /**
+     * Leave a hole for the outcome of the pending node and keep the output that follows it until the batches have run.
+     */
+    private void defer( PendingNode pending )
+    {
+        if ( deferred == null )
+        {
+            deferred = new ArrayList<>();
+            deferredTarget = out;
+        }
+
+        Deferred hole = new Deferred( pending, scopeContext.getIndent() );
+        deferred.add( hole );
+        out = new Output( hole.following );
+    }
+
+    /**
+     * Write what is kept for the batches if there is more than the limit, or always if forced (e.g. before the next streamed node is
+     * pulled, so the output of the previous one is not kept).
+     */
+    private void flushDeferred( boolean always )
+    {
+        if ( deferred == null || captureDepth > 0 )
+        {
+            return;
+        }
+
+        if ( !always )
+        {
+            int kept = 0;
+            for ( Deferred hole : deferred )
+            {
+                kept += hole.following.length();
+            }
+            if ( kept < MAX_DEFERRED_CHARS )
+            {
+                return;
+            }
+        }
+
+        writeDeferred();
+    }
+
+    /**
+     * Run the batches and write the outcomes into their holes, followed by the output kept after each of them. Outcomes can hold
+     * batched nodes themselves, so this repeats until nothing is deferred.
+     */
+    private void writeDeferred()
+    {
+        while ( deferred != null )
+        {
+            List<Deferred> holes = deferred;
+            out = deferredTarget;
+            deferred = null;
+            deferredTarget = null;
+            runBatches();
+
+            for ( Deferred hole : holes )
+            {
+                int oldIndent = scopeContext.getIndent();
+                scopeContext.setIndent( hole.indent );
+                for ( Node n : hardenPending( hole.pending ) )
+                {
+                    writeNode( n );
+                }
+                scopeContext.setIndent( oldIndent );
+                out.write( hole.following );
+            }
+        }
+    }
+
+    /**
+     * Wait for the async hook and harden its outcome as if it had been hardened where the hook was started. It is hardened right
+     * before being written, at the indent it is written at.
+     */
+    private List<Node> hardenPending( PendingNode pending )
+    {
+        if ( pending.isBatchPending() )
+        {
+            runBatches();
+        }
+
+        Node newNode = pending.await();
+        if ( newNode == null )
+        {
+            // Already hardened.
+            return Collections.singletonList( pending.getContext().getNode() );
+        }
+
+        ScopeContext oldScopeContext = scopeContext;
+        int oldHardenDepth = hardenDepth;
+        int oldPreserveDepth = preserveDepth;
+        HookIndex oldCustomIndex = customIndex;
+        RenderPlan oldPlan = activePlan;
+        Node[] oldPoints = activePoints;
+        scopeContext = new ScopeContext( pending.getContext() );
+        scopeContext.setIndent( oldScopeContext.getIndent() );
+        hardenDepth = 0;
+        preserveDepth = pending.getPreserveDepth();
+        customIndex = pending.getCustomIndex();
+        activePlan = pending.getPlan();
+        activePoints = pending.getInsertionPoints();
+        try
+        {
+            return hardenNode( newNode );
+        }
+        finally
+        {
+            scopeContext = oldScopeContext;
+            hardenDepth = oldHardenDepth;
+            preserveDepth = oldPreserveDepth;
+            customIndex = oldCustomIndex;
+            activePlan = oldPlan;
+            activePoints = oldPoints;
+        }
+    }
+
+    private Node performHook( Hook hook, HookContext ctx )
     {
         try
         {
-            HookContext ctx = new HookContext( pageContext, scopeContext, node );
             Node newNode = hook.doHook( ctx );
 
-            return newNode == null ? node : newNode;
+            return newNode == null ? ctx.getNode() : newNode;
         }
         catch ( Exception e )
         {
@@ -671,6 +1901,75 @@ public class NodeWriter
     // Inner Classes
     // ============================================================
 
+    /**
+     * Contexts bound to one BatchHook and the futures their outcomes complete.
+     */
+    private static class Batch
+    {
+        private final BatchHook hook;
+        private final List<HookContext> contexts;
+        private final List<CompletableFuture<Node>> futures;
+
+        Batch( BatchHook hook )
+        {
+            this.hook = hook;
+            contexts = new ArrayList<>();
+            futures = new ArrayList<>();
+        }
+
+        CompletableFuture<Node> add( HookContext context )
+        {
+            CompletableFuture<Node> future = new CompletableFuture<>();
+            contexts.add( context );
+            futures.add( future );
+
+            return future;
+        }
+
+        void run()
+        {
+            try
+            {
+                List<Node> nodes = hook.doHooks( contexts );
+                if ( nodes == null || nodes.size() != contexts.size() )
+                {
+                    throw new IllegalStateException(
+                        hook.getClass().getName() + " returned " + ( nodes == null ? 0 : nodes.size() ) + " nodes for " + contexts.size() +
+                            " contexts" );
+                }
+
+                for ( int i = 0; i < nodes.size(); i++ )
+                {
+                    futures.get( i ).complete( nodes.get( i ) );
+                }
+            }
+            catch ( Exception e )
+            {
+                for ( CompletableFuture<Node> future : futures )
+                {
+                    future.completeExceptionally( e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Hole left for a batched outcome and the output that follows it.
+     */
+    private static class Deferred
+    {
+        private final PendingNode pending;
+        private final int indent;
+        private final StringBuilder following;
+
+        Deferred( PendingNode pending, int indent )
+        {
+            this.pending = pending;
+            this.indent = indent;
+            following = new StringBuilder();
+        }
+    }
+
     public static class PageContextStub implements PageContext
     {
         @Override
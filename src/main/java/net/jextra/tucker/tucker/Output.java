@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.io.*;
+
+/**
+ * Destination of rendered output. The first IOException of the target stops the render right away (e.g. the client went away), it is
+ * thrown as a {@link Failure} so the render methods do not all have to declare it, and is unwrapped again where the render started.
+ * Unlike a PrintWriter it does not lock and writes straight through to the target.
+ */
+class Output
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private Appendable target;
+
+    // Scratch space for numbers, so writing them does not create Strings.
+    private char[] digits;
+    private StringBuilder decimal;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    Output( Appendable target )
+    {
+        this.target = target;
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public void write( char c )
+    {
+        try
+        {
+            append( c );
+        }
+        catch ( IOException e )
+        {
+            throw new Failure( e );
+        }
+    }
+
+    public void write( CharSequence string )
+    {
+        write( string, 0, string.length() );
+    }
+
+    public void write( CharSequence string, int off, int len )
+    {
+        if ( len == 0 )
+        {
+            return;
+        }
+
+        try
+        {
+            append( string, off, len );
+        }
+        catch ( IOException e )
+        {
+            throw new Failure( e );
+        }
+    }
+
+    public void write( char[] chars, int off, int len )
+    {
+        if ( len == 0 )
+        {
+            return;
+        }
+
+        try
+        {
+            append( chars, off, len );
+        }
+        catch ( IOException e )
+        {
+            throw new Failure( e );
+        }
+    }
+
+    /**
+     * Same digits as {@link Long#toString(long)}.
+     */
+    public void write( long value )
+    {
+        if ( digits == null )
+        {
+            digits = new char[20];
+        }
+
+        int pos = digits.length;
+        long remaining = value;
+        do
+        {
+            digits[--pos] = (char) ( '0' + Math.abs( remaining % 10 ) );
+            remaining /= 10;
+        }
+        while ( remaining != 0 );
+        if ( value < 0 )
+        {
+            digits[--pos] = '-';
+        }
+
+        write( digits, pos, digits.length - pos );
+    }
+
+    /**
+     * Same digits as {@link Double#toString(double)}.
+     */
+    public void write( double value )
+    {
+        if ( decimal == null )
+        {
+            decimal = new StringBuilder( 32 );
+        }
+
+        decimal.setLength( 0 );
+        decimal.append( value );
+        write( decimal, 0, decimal.length() );
+    }
+
+    /**
+     * Write static text whose UTF-8 encoding is already known, so byte oriented outputs do not have to encode it again.
+     */
+    public void write( String text, byte[] utf8 )
+    {
+        if ( text.isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            appendEncoded( text, utf8 );
+        }
+        catch ( IOException e )
+        {
+            throw new Failure( e );
+        }
+    }
+
+    public void newline()
+    {
+        write( RenderPlan.NEWLINE );
+    }
+
+    /**
+     * Push anything that is buffered through to the target.
+     */
+    public void flush()
+    {
+        try
+        {
+            flushTarget();
+        }
+        catch ( IOException e )
+        {
+            throw new Failure( e );
+        }
+    }
+
+    // ----------
+    // protected
+    // ----------
+
+    protected void append( char c )
+        throws IOException
+    {
+        target.append( c );
+    }
+
+    protected void append( CharSequence string, int off, int len )
+        throws IOException
+    {
+        target.append( string, off, off + len );
+    }
+
+    protected void append( char[] chars, int off, int len )
+        throws IOException
+    {
+        if ( target instanceof Writer )
+        {
+            ( (Writer) target ).write( chars, off, len );
+        }
+        else if ( target instanceof StringBuilder )
+        {
+            ( (StringBuilder) target ).append( chars, off, len );
+        }
+        else
+        {
+            for ( int i = off; i < off + len; i++ )
+            {
+                target.append( chars[i] );
+            }
+        }
+    }
+
+    protected void appendEncoded( String text, byte[] utf8 )
+        throws IOException
+    {
+        append( text, 0, text.length() );
+    }
+
+    protected void flushTarget()
+        throws IOException
+    {
+        // The Appendable is owned by the caller, which decides when to flush it.
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    /**
+     * IOException of the target, unchecked so it can pass through the render.
+     */
+    static class Failure extends RuntimeException
+    {
+        Failure( IOException cause )
+        {
+            super( cause );
+        }
+
+        @Override
+        public synchronized IOException getCause()
+        {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.concurrent.*;
+
+/**
+ * Placeholder for the outcome of an {@link AsyncHook} that was started, or a {@link BatchHook} that was queued, while hardening. Keeps
+ * the state of the writer at that point so the outcome can be hardened the same way once it is written.
+ */
+class PendingNode extends Node
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private Hook hook;
+    private HookContext context;
+    private CompletableFuture<Node> future;
+    private long timeout;
+    private boolean batched;
+    private int preserveDepth;
+    private HookIndex customIndex;
+    private RenderPlan plan;
+    private Node[] insertionPoints;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    /**
+     * @param timeout milliseconds to wait for the outcome, 0 or less to wait as long as it takes.
+     * @param batched true if the future is only completed once the batch of the hook is run.
+     */
+    PendingNode( Hook hook, HookContext context, CompletableFuture<Node> future, long timeout, boolean batched, int preserveDepth,
+        HookIndex customIndex, RenderPlan plan, Node[] insertionPoints )
+    {
+        super( NodeType.rawText );
+        this.hook = hook;
+        this.context = context;
+        this.future = future;
+        this.timeout = timeout;
+        this.batched = batched;
+        this.preserveDepth = preserveDepth;
+        this.customIndex = customIndex;
+        this.plan = plan;
+        this.insertionPoints = insertionPoints;
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * Wait (at most the hook's timeout) for the outcome of the hook.
+     *
+     * @return the replacement node or null to keep the hooked node.
+     */
+    Node await()
+    {
+        try
+        {
+            return timeout > 0 ? future.get( timeout, TimeUnit.MILLISECONDS ) : future.get();
+        }
+        catch ( TimeoutException e )
+        {
+            future.cancel( true );
+            throw new RuntimeException( "Hook " + hook.getClass().getName() + " timed out after " + timeout + "ms", e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+
+    /**
+     * Stop waiting for the hook, e.g. because rendering failed before its outcome was written. Does nothing if it is already done.
+     */
+    void cancel()
+    {
+        future.cancel( true );
+    }
+
+    /**
+     * True if the outcome is waiting for its batch to be run.
+     */
+    boolean isBatchPending()
+    {
+        return batched && !future.isDone();
+    }
+
+    HookContext getContext()
+    {
+        return context;
+    }
+
+    int getPreserveDepth()
+    {
+        return preserveDepth;
+    }
+
+    HookIndex getCustomIndex()
+    {
+        return customIndex;
+    }
+
+    RenderPlan getPlan()
+    {
+        return plan;
+    }
+
+    Node[] getInsertionPoints()
+    {
+        return insertionPoints;
+    }
+}
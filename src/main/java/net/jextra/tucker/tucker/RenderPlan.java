@@ -0,0 +1,692 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * An immutable, flat list of instructions compiled from a parsed {@link Block}. Static markup is pre-cleaned and merged into text chunks
+ * so that rendering is a single linear pass that only has to fill in variables, booleans, phrases, insertions and hooks. The static
+ * chunks are also kept UTF-8 encoded for rendering straight to bytes.
+ * <p>
+ * A plan is compiled for one {@link NodeWriter.OutputMode}, the whitespace and quoting of the output are part of its static chunks.
+ */
+public class RenderPlan
+{
+    // ============================================================
+    // Enums
+    // ============================================================
+
+    enum Op
+    {
+        text, // static chunk written as-is
+        indent, // indent whitespace for the render indent + depth
+        tag, // hook check point, skip to end if the tag is replaced by a hook
+        expression, // tag name or text segment with variables
+        attribute, // attribute with variables
+        childrenStart, // newline only if any of the insertion slots has content
+        childrenEnd, // indent only if any of the insertion slots has content
+        insertion, // content inserted at an insertion point
+        node // any other node that must be rendered dynamically (e.g. a Block)
+    }
+
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    static final String NEWLINE = System.lineSeparator();
+    private static final int[] NO_SLOTS = new int[0];
+
+    // Tags whose text whitespace is significant and therefore never collapsed.
+    private static final Set<String> PRESERVE_WHITESPACE_TAGS = new HashSet<>( Arrays.asList( "pre", "textarea", "script", "style" ) );
+
+    private final NodeWriter.OutputMode outputMode;
+    private final ScopeLayout layout;
+    private final Instruction[] instructions;
+    private final Node[] insertionPoints;
+    private final Map<String, int[]> insertionSlots;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    private RenderPlan( NodeWriter.OutputMode outputMode, ScopeLayout layout, List<Instruction> instructions, List<Node> insertionPoints )
+    {
+        this.outputMode = outputMode;
+        this.layout = layout;
+        this.instructions = instructions.toArray( new Instruction[0] );
+        this.insertionPoints = insertionPoints.toArray( new Node[0] );
+
+        insertionSlots = new HashMap<>();
+        for ( int i = 0; i < this.insertionPoints.length; i++ )
+        {
+            int[] slots = insertionSlots.get( this.insertionPoints[i].getTagName() );
+            slots = slots == null ? new int[1] : Arrays.copyOf( slots, slots.length + 1 );
+            slots[slots.length - 1] = i;
+            insertionSlots.put( this.insertionPoints[i].getTagName(), slots );
+        }
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public static RenderPlan compile( Node root )
+    {
+        return compile( root, NodeWriter.OutputMode.pretty );
+    }
+
+    public static RenderPlan compile( Node root, NodeWriter.OutputMode outputMode )
+    {
+        return compile( root, outputMode, null );
+    }
+
+    /**
+     * @param layout of another plan of the same root, so that the plans share it (and the Scopes made for it).
+     */
+    static RenderPlan compile( Node root, NodeWriter.OutputMode outputMode, ScopeLayout layout )
+    {
+        Compiler compiler = new Compiler( outputMode, layout );
+        if ( root.getNodeType() == Node.NodeType.block )
+        {
+            for ( Node child : root.children() )
+            {
+                compiler.compileNode( child, 0 );
+            }
+        }
+        else
+        {
+            compiler.compileNode( root, 0 );
+        }
+        compiler.flushText();
+
+        return new RenderPlan( outputMode, compiler.layout.build(), compiler.instructions, compiler.insertionPoints );
+    }
+
+    public NodeWriter.OutputMode getOutputMode()
+    {
+        return outputMode;
+    }
+
+    public int size()
+    {
+        return instructions.length;
+    }
+
+    public int getInsertionPointCount()
+    {
+        return insertionPoints.length;
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * Slots of the variable and boolean names used by this plan, the expression parts refer to them by index.
+     */
+    ScopeLayout getLayout()
+    {
+        return layout;
+    }
+
+    Instruction[] getInstructions()
+    {
+        return instructions;
+    }
+
+    Node getInsertionPoint( int slot )
+    {
+        return insertionPoints[slot];
+    }
+
+    Set<String> getInsertionNames()
+    {
+        return insertionSlots.keySet();
+    }
+
+    /**
+     * The slots of the insertion points with the given name, in slot order.
+     */
+    int[] getInsertionSlots( String name )
+    {
+        int[] slots = insertionSlots.get( name );
+
+        return slots == null ? NO_SLOTS : slots;
+    }
+
+    /**
+     * The slot of the given insertion node of the compiled tree, or -1 if it is not one of them.
+     */
+    int getInsertionSlot( Node insertionPoint )
+    {
+        for ( int i = 0; i < insertionPoints.length; i++ )
+        {
+            if ( insertionPoints[i] == insertionPoint )
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    static boolean preservesWhitespace( String tagName )
+    {
+        return tagName != null && PRESERVE_WHITESPACE_TAGS.contains( tagName.toLowerCase() );
+    }
+
+    /**
+     * Collapse each run of HTML whitespace to a single space. Phrases are left as they are so they still match their translations.
+     */
+    static String collapseWhitespace( String text )
+    {
+        if ( text == null )
+        {
+            return null;
+        }
+
+        StringBuilder builder = null;
+        boolean inPhrase = false;
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if ( c == Tucker.PHRASE_START )
+            {
+                inPhrase = true;
+            }
+            else if ( c == Tucker.PHRASE_END )
+            {
+                inPhrase = false;
+            }
+            else if ( !inPhrase && isWhitespace( c ) && i + 1 < text.length() && isWhitespace( text.charAt( i + 1 ) ) )
+            {
+                // Skip this run, write a single space in its place.
+                if ( builder == null )
+                {
+                    builder = new StringBuilder( text.length() );
+                    builder.append( text, 0, i );
+                }
+                builder.append( ' ' );
+                while ( i + 1 < text.length() && isWhitespace( text.charAt( i + 1 ) ) )
+                {
+                    i++;
+                }
+                continue;
+            }
+
+            if ( builder != null )
+            {
+                builder.append( c );
+            }
+        }
+
+        return builder == null ? text : builder.toString();
+    }
+
+    /**
+     * Whether an attribute value must be quoted (HTML unquoted attribute value syntax).
+     */
+    static boolean needsQuotes( String value )
+    {
+        if ( value.isEmpty() )
+        {
+            return true;
+        }
+
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            switch ( c )
+            {
+                case '"':
+                case '\'':
+                case '=':
+                case '<':
+                case '>':
+                case '`':
+                case Tucker.BACK_TICK:
+                    return true;
+
+                default:
+                    if ( isWhitespace( c ) )
+                    {
+                        return true;
+                    }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Collect insertion points in the same order the compiler assigns their slots.
+     */
+    static void collectInsertionPoints( Node node, List<Node> list )
+    {
+        for ( Node child : node.children() )
+        {
+            switch ( child.getNodeType() )
+            {
+                case insertion:
+                    list.add( child );
+                    break;
+
+                case tag:
+                    collectInsertionPoints( child, list );
+                    break;
+            }
+        }
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    /**
+     * HTML whitespace only, the marker characters Tucker uses are whitespace to {@link Character#isWhitespace(char)}.
+     */
+    private static boolean isWhitespace( char c )
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    static class Instruction
+    {
+        private Op op;
+        private String text;
+        private byte[] bytes;
+        private int depth;
+        private boolean inline;
+        private Expression expression;
+        private Expression value;
+        private Node node;
+        private int slot;
+        private int[] slots;
+        private int end;
+
+        Instruction( Op op )
+        {
+            this.op = op;
+        }
+
+        public Op getOp()
+        {
+            return op;
+        }
+
+        public String getText()
+        {
+            return text;
+        }
+
+        /**
+         * The text encoded as UTF-8.
+         */
+        public byte[] getBytes()
+        {
+            return bytes;
+        }
+
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        public boolean isInline()
+        {
+            return inline;
+        }
+
+        public Expression getExpression()
+        {
+            return expression;
+        }
+
+        public Expression getValue()
+        {
+            return value;
+        }
+
+        public Node getNode()
+        {
+            return node;
+        }
+
+        public int getSlot()
+        {
+            return slot;
+        }
+
+        public int[] getSlots()
+        {
+            return slots;
+        }
+
+        public int getEnd()
+        {
+            return end;
+        }
+    }
+
+    private static class Compiler
+    {
+        private List<Instruction> instructions = new ArrayList<>();
+        private List<Node> insertionPoints = new ArrayList<>();
+        private StringBuilder text = new StringBuilder();
+        private ScopeLayout.Builder layout;
+        private boolean compact;
+        private boolean quoteAttributes;
+        private int preserveDepth;
+
+        Compiler( NodeWriter.OutputMode outputMode, ScopeLayout baseLayout )
+        {
+            layout = new ScopeLayout.Builder( baseLayout );
+            compact = outputMode != NodeWriter.OutputMode.pretty;
+            quoteAttributes = outputMode != NodeWriter.OutputMode.minified;
+        }
+
+        void compileNode( Node node, int depth )
+        {
+            switch ( node.getNodeType() )
+            {
+                case tag:
+                    compileTag( node, depth );
+                    break;
+
+                case insertion:
+                {
+                    Instruction in = add( Op.insertion );
+                    in.slot = insertionPoints.size();
+                    in.depth = depth;
+                    insertionPoints.add( node );
+                    break;
+                }
+
+                case rawText:
+                    // Raw text is not interpreted, so even a compact plan keeps its line.
+                    addIndent( depth );
+                    text.append( node.getRawText() );
+                    text.append( NEWLINE );
+                    break;
+
+                case block:
+                {
+                    Instruction in = add( Op.node );
+                    in.node = node;
+                    in.depth = depth;
+                    break;
+                }
+            }
+        }
+
+        void compileTag( Node node, int depth )
+        {
+            Instruction tag = add( Op.tag );
+            tag.node = node;
+            tag.depth = depth;
+            tag.inline = node.isInline();
+
+            if ( !node.isInline() )
+            {
+                addIndent( depth );
+            }
+            text.append( '<' );
+            addExpression( Expression.compile( node.getTagName() ) );
+
+            // Always write id first, then class, then everything else.
+            addAttribute( node.getAttribute( Node.ATT_ID ) );
+            addAttribute( node.getAttribute( Node.ATT_CLASS ) );
+            for ( Attribute att : node.attributes().values() )
+            {
+                if ( Node.ATT_ID.equals( att.getKey() ) || Node.ATT_CLASS.equals( att.getKey() ) )
+                {
+                    continue;
+                }
+
+                addAttribute( att );
+            }
+            text.append( '>' );
+
+            boolean preserve = compact && preservesWhitespace( node.getTagName() );
+            if ( preserve )
+            {
+                preserveDepth++;
+            }
+
+            for ( Segment segment : node.segments() )
+            {
+                switch ( segment.getType() )
+                {
+                    case text:
+                    {
+                        String value = segment.getValue();
+                        addExpression( Expression.compile( compact && preserveDepth == 0 ? collapseWhitespace( value ) : value ) );
+                        break;
+                    }
+
+                    case inline:
+                        compileTag( segment.getNode(), depth );
+                        break;
+                }
+            }
+
+            List<Node> children = node.children();
+            if ( compact )
+            {
+                for ( Node child : children )
+                {
+                    compileNode( child, depth + 1 );
+                }
+            }
+            else if ( !children.isEmpty() )
+            {
+                // Only children that are all insertion points can end up empty, which changes the whitespace around them.
+                int[] slots = null;
+                boolean hasStaticChild = false;
+                for ( Node child : children )
+                {
+                    hasStaticChild |= child.getNodeType() != Node.NodeType.insertion;
+                }
+
+                if ( hasStaticChild )
+                {
+                    text.append( NEWLINE );
+                }
+                else
+                {
+                    slots = new int[children.size()];
+                    for ( int i = 0; i < slots.length; i++ )
+                    {
+                        slots[i] = insertionPoints.size() + i;
+                    }
+                    add( Op.childrenStart ).slots = slots;
+                }
+
+                for ( Node child : children )
+                {
+                    compileNode( child, depth + 1 );
+                }
+
+                if ( !node.isInline() )
+                {
+                    if ( hasStaticChild )
+                    {
+                        addIndent( depth );
+                    }
+                    else
+                    {
+                        Instruction in = add( Op.childrenEnd );
+                        in.slots = slots;
+                        in.depth = depth;
+                    }
+                }
+            }
+
+            text.append( "</" );
+            addExpression( Expression.compile( node.getTagName() ) );
+            text.append( '>' );
+            if ( !node.isInline() && !compact )
+            {
+                text.append( NEWLINE );
+            }
+
+            if ( preserve )
+            {
+                preserveDepth--;
+            }
+
+            flushText();
+            tag.end = instructions.size();
+        }
+
+        void addAttribute( Attribute att )
+        {
+            if ( att == null )
+            {
+                return;
+            }
+
+            Expression key = Expression.compile( att.getKey() );
+            Expression value = Expression.compile( att.getValue() );
+            if ( key.isStatic() )
+            {
+                if ( key.getStaticValue().trim().isEmpty() )
+                {
+                    return;
+                }
+
+                if ( value == null )
+                {
+                    text.append( ' ' ).append( key.getStaticValue() );
+                    return;
+                }
+                else if ( value.isStatic() )
+                {
+                    text.append( ' ' ).append( key.getStaticValue() ).append( '=' );
+                    if ( quoteAttributes || needsQuotes( value.getStaticValue() ) )
+                    {
+                        text.append( '"' ).append( value.getStaticValue() ).append( '"' );
+                    }
+                    else
+                    {
+                        text.append( value.getStaticValue() );
+                    }
+                    return;
+                }
+            }
+
+            Instruction in = add( Op.attribute );
+            in.expression = resolve( key );
+            in.value = resolve( value );
+        }
+
+        void addExpression( Expression expression )
+        {
+            if ( expression == null )
+            {
+                return;
+            }
+
+            if ( expression.isStatic() )
+            {
+                text.append( expression.getStaticValue() );
+                return;
+            }
+
+            add( Op.expression ).expression = resolve( expression );
+        }
+
+        /**
+         * Assign each variable and boolean of the expression its slot.
+         */
+        Expression resolve( Expression expression )
+        {
+            if ( expression == null )
+            {
+                return null;
+            }
+
+            for ( Expression.Part part : expression.getParts() )
+            {
+                switch ( part.getType() )
+                {
+                    case variable:
+                        part.setSlot( layout.variable( part.getValue() ) );
+                        break;
+
+                    case bool:
+                        part.setSlot( layout.bool( part.getValue() ) );
+                        break;
+
+                    case phrase:
+                        resolve( part.getPhrase() );
+                        break;
+                }
+            }
+
+            return expression;
+        }
+
+        void addIndent( int depth )
+        {
+            if ( compact )
+            {
+                return;
+            }
+
+            add( Op.indent ).depth = depth;
+        }
+
+        Instruction add( Op op )
+        {
+            flushText();
+            Instruction in = new Instruction( op );
+            instructions.add( in );
+
+            return in;
+        }
+
+        void flushText()
+        {
+            if ( text.length() == 0 )
+            {
+                return;
+            }
+
+            Instruction in = new Instruction( Op.text );
+            in.text = text.toString();
+            in.bytes = in.text.getBytes( StandardCharsets.UTF_8 );
+            instructions.add( in );
+            text.setLength( 0 );
+        }
+    }
+}
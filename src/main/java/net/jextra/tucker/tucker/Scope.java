@@ -22,7 +22,9 @@
 package net.jextra.tucker.tucker;
 
 import java.lang.reflect.*;
+import java.nio.*;
 import java.util.*;
+import java.util.function.*;
 import net.jextra.tucker.encoder.*;
 
 public class Scope
@@ -31,9 +33,33 @@ public class Scope
     // Fields
     // ============================================================
 
-    private Map<String, String> varValues;
+    // Kind of value in a variable slot. Null is a variable explicitly set to null, as opposed to one that is not set at all.
+    static final byte VAR_UNSET = 0;
+    static final byte VAR_NULL = 1;
+    static final byte VAR_TEXT = 2;
+    static final byte VAR_RAW_TEXT = 3;
+    static final byte VAR_LONG = 4;
+    static final byte VAR_DOUBLE = 5;
+    static final byte VAR_SUPPLIED = 6;
+
+    private static final byte BOOL_UNSET = 0;
+    private static final byte BOOL_FALSE = 1;
+    private static final byte BOOL_TRUE = 2;
+
+    // Names known to the template are kept in flat arrays (allocated on first use), any others in the maps.
+    // Values are kept as they are set and only HTML encoded when first read, the encoded form is kept until the value changes.
+    // Numbers are kept as primitives (doubles as their bits) so they can be written without becoming a String. Supplied values are
+    // kept as a Value that is never changed, what it supplies is kept by the ScopeContext of the render (see ScopeContext.supply).
+    private ScopeLayout layout;
+    private byte[] varKinds;
+    private Object[] varSlots;
+    private long[] numberSlots;
+    private String[] encodedSlots;
+    private byte[] boolSlots;
+    private Map<String, Value> varValues;
     private Map<String, Boolean> boolValues;
     private List<HookBinding> bindings;
+    private HookIndex hookIndex;
 
     // ============================================================
     // Constructors
@@ -41,29 +67,33 @@ public class Scope
 
     public Scope()
     {
-        varValues = new HashMap<>();
-        boolValues = new HashMap<>();
         bindings = new ArrayList<>();
     }
 
     public Scope( Scope other )
     {
         this();
-
-        for ( String key : other.varValues.keySet() )
-        {
-            varValues.put( key, other.getVariable( key ) );
-        }
-
-        for ( String key : other.boolValues.keySet() )
-        {
-            boolValues.put( key, other.getBoolean( key ) );
-        }
+        layout = other.layout;
+        varKinds = other.varKinds == null ? null : other.varKinds.clone();
+        varSlots = other.varSlots == null ? null : other.varSlots.clone();
+        numberSlots = other.numberSlots == null ? null : other.numberSlots.clone();
+        encodedSlots = other.encodedSlots == null ? null : other.encodedSlots.clone();
+        boolSlots = other.boolSlots == null ? null : other.boolSlots.clone();
+        varValues = other.varValues == null ? null : new HashMap<>( other.varValues );
+        boolValues = other.boolValues == null ? null : new HashMap<>( other.boolValues );
 
         for ( HookBinding binding : other.bindings )
         {
             bindings.add( new HookBinding( binding ) );
         }
+        // Same tag names, ids, classes and hooks.
+        hookIndex = other.hookIndex;
+    }
+
+    Scope( ScopeLayout layout )
+    {
+        this();
+        this.layout = layout;
     }
 
     // ============================================================
@@ -76,23 +106,63 @@ public class Scope
 
     public void clear()
     {
-        varValues.clear();
-        boolValues.clear();
+        varKinds = null;
+        varSlots = null;
+        numberSlots = null;
+        encodedSlots = null;
+        boolSlots = null;
+        varValues = null;
+        boolValues = null;
     }
 
     public Set<String> getVariableNames()
     {
-        return varValues.keySet();
+        Set<String> names = new HashSet<>();
+        if ( varKinds != null )
+        {
+            for ( int i = 0; i < varKinds.length; i++ )
+            {
+                if ( varKinds[i] != VAR_UNSET )
+                {
+                    names.add( layout.getVariableName( i ) );
+                }
+            }
+        }
+        if ( varValues != null )
+        {
+            names.addAll( varValues.keySet() );
+        }
+
+        return names;
     }
 
     public boolean hasVariable( String name )
     {
-        return varValues.containsKey( name );
+        ScopeSlot slot = layout == null ? null : layout.getVariableSlot( name );
+        if ( slot != null )
+        {
+            return varKinds != null && varKinds[slot.getIndex()] != VAR_UNSET;
+        }
+
+        return varValues != null && varValues.containsKey( name );
     }
 
     public String getVariable( String name )
     {
-        return varValues.get( name );
+        ScopeSlot slot = layout == null ? null : layout.getVariableSlot( name );
+        if ( slot != null )
+        {
+            return getVariable( slot.getIndex() );
+        }
+
+        Value value = varValues == null ? null : varValues.get( name );
+
+        return value == null ? null : value.getString();
+    }
+
+    public String getVariable( ScopeSlot slot )
+    {
+        return slot.getLayout() == layout ? getVariable( slot.getIndex() ) : getVariable( slot.getName() );
     }
 
     public Scope setVariable( String name, String value )
@@ -149,26 +219,172 @@ public class Scope
 
     public Scope setVariable( String name, String value, Boolean encode )
     {
-        if ( encode )
+        return setVariable( name, (CharSequence) value, encode );
+    }
+
+    /**
+     * The value is written as it is when rendered, without making a String of it. It must not be changed until rendered.
+     */
+    public Scope setVariable( String name, CharSequence value )
+    {
+        return setVariable( name, value, true );
+    }
+
+    public Scope setVariable( String name, CharSequence value, Boolean encode )
+    {
+        ScopeSlot slot = layout == null ? null : layout.getVariableSlot( name );
+        if ( slot != null )
+        {
+            return setVariable( slot, value, encode );
+        }
+
+        return putValue( name, new Value( value == null ? VAR_NULL : encode ? VAR_TEXT : VAR_RAW_TEXT, value, 0 ) );
+    }
+
+    /**
+     * Slice of a char array, which is written directly from the array when rendered. It must not be changed until rendered.
+     */
+    public Scope setVariable( String name, char[] chars, int offset, int length )
+    {
+        return setVariable( name, chars == null ? null : CharBuffer.wrap( chars, offset, length ) );
+    }
+
+    /**
+     * Number written digit by digit when rendered, without making a String of it.
+     */
+    public Scope setVariable( String name, long value )
+    {
+        ScopeSlot slot = layout == null ? null : layout.getVariableSlot( name );
+        if ( slot != null )
+        {
+            return setVariable( slot, value );
+        }
+
+        return putValue( name, new Value( VAR_LONG, null, value ) );
+    }
+
+    public Scope setVariable( String name, double value )
+    {
+        ScopeSlot slot = layout == null ? null : layout.getVariableSlot( name );
+        if ( slot != null )
+        {
+            return setVariable( slot, value );
+        }
+
+        return putValue( name, new Value( VAR_DOUBLE, null, Double.doubleToRawLongBits( value ) ) );
+    }
+
+    /**
+     * The supplier is only called if rendering reaches something that uses the variable, and then only once per render, so expensive
+     * values are not computed for nodes that are never written. Outside of a render (e.g. {@link #getVariable(String)}) it is called on
+     * every read. Numbers it supplies are written like {@link #setVariable(String, long)} and {@link #setVariable(String, double)},
+     * anything else is HTML encoded text.
+     */
+    public Scope setVariable( String name, Supplier<?> supplier )
+    {
+        ScopeSlot slot = layout == null ? null : layout.getVariableSlot( name );
+        if ( slot != null )
+        {
+            return setVariable( slot, supplier );
+        }
+
+        return putValue( name, supplier == null ? new Value( VAR_NULL, null, 0 ) : new Value( supplier ) );
+    }
+
+    public Scope setVariable( ScopeSlot slot, String value )
+    {
+        return setVariable( slot, value, true );
+    }
+
+    public Scope setVariable( ScopeSlot slot, String value, Boolean encode )
+    {
+        return setVariable( slot, (CharSequence) value, encode );
+    }
+
+    public Scope setVariable( ScopeSlot slot, CharSequence value )
+    {
+        return setVariable( slot, value, true );
+    }
+
+    public Scope setVariable( ScopeSlot slot, CharSequence value, Boolean encode )
+    {
+        if ( slot.getLayout() != layout )
+        {
+            return setVariable( slot.getName(), value, encode );
+        }
+
+        int index = setSlot( slot.getIndex(), value == null ? VAR_NULL : encode ? VAR_TEXT : VAR_RAW_TEXT, 0 );
+        varSlots[index] = value;
+        // Plain Strings that need no encoding are already in their final form.
+        encodedSlots[index] = !encode && value instanceof String ? (String) value : null;
+
+        return this;
+    }
+
+    public Scope setVariable( ScopeSlot slot, long value )
+    {
+        if ( slot.getLayout() != layout )
+        {
+            return setVariable( slot.getName(), value );
+        }
+
+        setSlot( slot.getIndex(), VAR_LONG, value );
+
+        return this;
+    }
+
+    public Scope setVariable( ScopeSlot slot, double value )
+    {
+        if ( slot.getLayout() != layout )
         {
-            varValues.put( name, Encoder.encodeForHtml( value ) );
+            return setVariable( slot.getName(), value );
         }
-        else
+
+        setSlot( slot.getIndex(), VAR_DOUBLE, Double.doubleToRawLongBits( value ) );
+
+        return this;
+    }
+
+    public Scope setVariable( ScopeSlot slot, Supplier<?> supplier )
+    {
+        if ( slot.getLayout() != layout )
         {
-            varValues.put( name, value );
+            return setVariable( slot.getName(), supplier );
         }
 
+        int index = setSlot( slot.getIndex(), supplier == null ? VAR_NULL : VAR_SUPPLIED, 0 );
+        varSlots[index] = supplier == null ? null : new Value( supplier );
+
         return this;
     }
 
     public boolean hasBoolean( String name )
     {
-        return boolValues.containsKey( name );
+        ScopeSlot slot = layout == null ? null : layout.getBooleanSlot( name );
+        if ( slot != null )
+        {
+            return boolSlots != null && boolSlots[slot.getIndex()] != BOOL_UNSET;
+        }
+
+        return boolValues != null && boolValues.containsKey( name );
     }
 
     public boolean getBoolean( String name )
     {
-        return boolValues.get( name ) == null ? false : boolValues.get( name );
+        ScopeSlot slot = layout == null ? null : layout.getBooleanSlot( name );
+        if ( slot != null )
+        {
+            return getBoolean( slot.getIndex() );
+        }
+
+        Boolean value = boolValues == null ? null : boolValues.get( name );
+
+        return value != null && value;
+    }
+
+    public boolean getBoolean( ScopeSlot slot )
+    {
+        return slot.getLayout() == layout ? getBoolean( slot.getIndex() ) : getBoolean( slot.getName() );
     }
 
     public Scope setBoolean( String name )
@@ -178,19 +394,59 @@ public class Scope
 
     public Scope clearBoolean( String name )
     {
-        boolValues.remove( name );
+        ScopeSlot slot = layout == null ? null : layout.getBooleanSlot( name );
+        if ( slot != null )
+        {
+            if ( boolSlots != null )
+            {
+                boolSlots[slot.getIndex()] = BOOL_UNSET;
+            }
+        }
+        else if ( boolValues != null )
+        {
+            boolValues.remove( name );
+        }
+
         return this;
     }
 
     public Scope setBoolean( String name, boolean value )
     {
+        ScopeSlot slot = layout == null ? null : layout.getBooleanSlot( name );
+        if ( slot != null )
+        {
+            return setBoolean( slot, value );
+        }
+
+        if ( boolValues == null )
+        {
+            boolValues = new HashMap<>();
+        }
         boolValues.put( name, value );
+
+        return this;
+    }
+
+    public Scope setBoolean( ScopeSlot slot, boolean value )
+    {
+        if ( slot.getLayout() != layout )
+        {
+            return setBoolean( slot.getName(), value );
+        }
+
+        if ( boolSlots == null )
+        {
+            boolSlots = new byte[layout.getBooleanCount()];
+        }
+        boolSlots[slot.getIndex()] = value ? BOOL_TRUE : BOOL_FALSE;
+
         return this;
     }
 
     public void bind( String hookSelector, Hook hook )
     {
         bindings.add( new HookBinding( hookSelector, hook ) );
+        hookIndex = null;
     }
 
     public <T extends Hook> T bind( String hookSelector, Class<T> hookClass )
@@ -206,4 +462,275 @@ public class Scope
     {
         return bindings;
     }
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * Index of the bindings, rebuilt when bindings have been added. Changes made to a binding after it is added are not seen.
+     */
+    HookIndex getHookIndex()
+    {
+        if ( hookIndex == null || hookIndex.getBindingCount() != bindings.size() )
+        {
+            hookIndex = new HookIndex( bindings );
+        }
+
+        return hookIndex;
+    }
+
+    ScopeLayout getLayout()
+    {
+        return layout;
+    }
+
+    /**
+     * Same as {@link #getVariable(String)}, with supplied values taken from the render of the context.
+     */
+    String getVariable( String name, ScopeContext context )
+    {
+        ScopeSlot slot = layout == null ? null : layout.getVariableSlot( name );
+        if ( slot != null )
+        {
+            return getVariable( slot.getIndex(), context );
+        }
+
+        Value value = varValues == null ? null : varValues.get( name );
+        if ( value == null )
+        {
+            return null;
+        }
+
+        return value.kind == VAR_SUPPLIED ? context.supply( value ).getString() : value.getString();
+    }
+
+    /**
+     * Variable by the index of its slot in this Scope's layout, the fast path of rendering a compiled plan.
+     */
+    String getVariable( int index )
+    {
+        if ( varKinds == null )
+        {
+            return null;
+        }
+        else if ( varKinds[index] == VAR_SUPPLIED )
+        {
+            return ( (Value) varSlots[index] ).getString();
+        }
+
+        String encoded = encodedSlots[index];
+        if ( encoded == null )
+        {
+            encoded = toString( varKinds[index], (CharSequence) varSlots[index], numberSlots[index] );
+            encodedSlots[index] = encoded;
+        }
+
+        return encoded;
+    }
+
+    String getVariable( int index, ScopeContext context )
+    {
+        if ( varKinds != null && varKinds[index] == VAR_SUPPLIED )
+        {
+            return getSupplied( index, context ).getString();
+        }
+
+        return getVariable( index );
+    }
+
+    /**
+     * One of the VAR_ constants, which tells the writer how to get at the value without a String. A VAR_SUPPLIED value is read with
+     * {@link #getSupplied(int, ScopeContext)}.
+     */
+    byte getVariableKind( int index )
+    {
+        return varKinds == null ? VAR_UNSET : varKinds[index];
+    }
+
+    /**
+     * What the supplier of a VAR_SUPPLIED slot supplied in the render of the context.
+     */
+    Value getSupplied( int index, ScopeContext context )
+    {
+        return context.supply( (Value) varSlots[index] );
+    }
+
+    /**
+     * Text of a VAR_TEXT or VAR_RAW_TEXT slot as it was set.
+     */
+    CharSequence getText( int index )
+    {
+        return (CharSequence) varSlots[index];
+    }
+
+    long getLong( int index )
+    {
+        return numberSlots[index];
+    }
+
+    double getDouble( int index )
+    {
+        return Double.longBitsToDouble( numberSlots[index] );
+    }
+
+    boolean hasBoolean( int index )
+    {
+        return boolSlots != null && boolSlots[index] != BOOL_UNSET;
+    }
+
+    boolean getBoolean( int index )
+    {
+        return boolSlots != null && boolSlots[index] == BOOL_TRUE;
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private static String toString( byte kind, CharSequence text, long number )
+    {
+        switch ( kind )
+        {
+            case VAR_TEXT:
+                return Encoder.encodeForHtml( text.toString() );
+
+            case VAR_RAW_TEXT:
+                return text.toString();
+
+            case VAR_LONG:
+                return Long.toString( number );
+
+            case VAR_DOUBLE:
+                return Double.toString( Double.longBitsToDouble( number ) );
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return index of the slot, after making sure the slots are allocated.
+     */
+    private int setSlot( int index, byte kind, long number )
+    {
+        if ( varKinds == null )
+        {
+            int count = layout.getVariableCount();
+            varKinds = new byte[count];
+            varSlots = new Object[count];
+            numberSlots = new long[count];
+            encodedSlots = new String[count];
+        }
+        varKinds[index] = kind;
+        varSlots[index] = null;
+        numberSlots[index] = number;
+        encodedSlots[index] = null;
+
+        return index;
+    }
+
+    private Scope putValue( String name, Value value )
+    {
+        if ( varValues == null )
+        {
+            varValues = new HashMap<>();
+        }
+        varValues.put( name, value );
+
+        return this;
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    /**
+     * Value of a variable that is not in the layout, or one that is supplied.
+     */
+    static class Value
+    {
+        private final byte kind;
+        private final CharSequence text;
+        private final long number;
+        private final Supplier<?> supplier;
+        private String string;
+
+        Value( byte kind, CharSequence text, long number )
+        {
+            this.kind = kind;
+            this.text = text;
+            this.number = number;
+            supplier = null;
+        }
+
+        Value( Supplier<?> supplier )
+        {
+            kind = VAR_SUPPLIED;
+            text = null;
+            number = 0;
+            this.supplier = supplier;
+        }
+
+        byte getKind()
+        {
+            return kind;
+        }
+
+        CharSequence getText()
+        {
+            return text;
+        }
+
+        long getNumber()
+        {
+            return number;
+        }
+
+        /**
+         * Call the supplier, the outcome is not kept here as Values are shared by copies of a Scope and by renders.
+         */
+        Value supply()
+        {
+            return of( supplier.get() );
+        }
+
+        String getString()
+        {
+            if ( kind == VAR_SUPPLIED )
+            {
+                return supply().getString();
+            }
+
+            // Only ever replace null with the (same) String.
+            if ( string == null )
+            {
+                string = Scope.toString( kind, text, number );
+            }
+
+            return string;
+        }
+
+        private static Value of( Object object )
+        {
+            if ( object == null )
+            {
+                return new Value( VAR_NULL, null, 0 );
+            }
+            else if ( object instanceof Long || object instanceof Integer || object instanceof Short || object instanceof Byte )
+            {
+                return new Value( VAR_LONG, null, ( (Number) object ).longValue() );
+            }
+            else if ( object instanceof Double )
+            {
+                return new Value( VAR_DOUBLE, null, Double.doubleToRawLongBits( (Double) object ) );
+            }
+            else if ( object instanceof CharSequence )
+            {
+                return new Value( VAR_TEXT, (CharSequence) object, 0 );
+            }
+
+            return new Value( VAR_TEXT, String.valueOf( object ), 0 );
+        }
+    }
 }
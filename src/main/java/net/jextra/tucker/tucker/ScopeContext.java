@@ -34,8 +34,25 @@ public class ScopeContext
 
     public static final String INDENT_WHITESPACE = "  ";
 
-    private Deque<Scope> stack;
+    // Indent whitespace of the common depths so writing an indent does not build a new String each line.
+    private static final String[] INDENTS = new String[32];
+
+    static
+    {
+        INDENTS[0] = "";
+        for ( int i = 1; i < INDENTS.length; i++ )
+        {
+            INDENTS[i] = INDENTS[i - 1] + INDENT_WHITESPACE;
+        }
+    }
+
+    // Innermost scope, linked to the outer ones. Frames are never changed, so a copy of the context can share them.
+    private Frame top;
     private int indent;
+    private boolean inheritVariables;
+
+    // What suppliers of variables supplied in the current render, shared with copies of the context (e.g. HookContexts).
+    private Supplied supplied;
 
     // ============================================================
     // Constructors
@@ -43,17 +60,20 @@ public class ScopeContext
 
     public ScopeContext()
     {
-        stack = new ArrayDeque<>();
+        supplied = new Supplied();
     }
 
+    /**
+     * The copy shares the scopes of the other context (it does not copy them), pushing and popping either context does not affect
+     * the other one.
+     */
     public ScopeContext( ScopeContext other )
     {
         this();
-        for ( Scope scope : other.stack )
-        {
-            stack.add( new Scope( scope ) );
-        }
+        top = other.top;
         indent = other.indent;
+        inheritVariables = other.inheritVariables;
+        supplied = other.supplied;
     }
 
     // ============================================================
@@ -66,29 +86,69 @@ public class ScopeContext
 
     public void push( Scope scope )
     {
-        stack.push( scope );
+        top = new Frame( scope, top );
     }
 
     public Scope pop()
     {
-        return stack.pop();
+        if ( top == null )
+        {
+            throw new NoSuchElementException();
+        }
+
+        Scope scope = top.scope;
+        top = top.parent;
+
+        return scope;
+    }
+
+    public Scope peek()
+    {
+        return top == null ? null : top.scope;
+    }
+
+    public boolean isInheritVariables()
+    {
+        return inheritVariables;
+    }
+
+    /**
+     * When set, variables and booleans that are not set in the innermost scope are looked up in the outer scopes.
+     */
+    public void setInheritVariables( boolean inheritVariables )
+    {
+        this.inheritVariables = inheritVariables;
     }
 
     public String getVariable( String name )
     {
-        //        for ( Scope s : stack )
-        //        {
-        //            if ( !s.hasVariable( name ) )
-        //            {
-        //                continue;
-        //            }
-        //
-        //            return s.getVariable( name );
-        //        }
-        Scope s = stack.peek();
-        if ( s != null )
+        for ( Frame frame = top; frame != null; frame = frame.parent )
+        {
+            if ( !inheritVariables || frame.scope.hasVariable( name ) )
+            {
+                return frame.scope.getVariable( name, this );
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Look up the variable in the outer scopes only, when inheriting.
+     */
+    public String getInheritedVariable( String name )
+    {
+        if ( !inheritVariables || top == null )
+        {
+            return null;
+        }
+
+        for ( Frame frame = top.parent; frame != null; frame = frame.parent )
         {
-            return s.getVariable( name );
+            if ( frame.scope.hasVariable( name ) )
+            {
+                return frame.scope.getVariable( name, this );
+            }
         }
 
         return null;
@@ -96,19 +156,30 @@ public class ScopeContext
 
     public boolean getBoolean( String name )
     {
-        //        for ( Scope s : stack )
-        //        {
-        //            if ( !s.hasBoolean( name ) )
-        //            {
-        //                continue;
-        //            }
-        //
-        //            return s.getBoolean( name );
-        //        }
-        Scope s = stack.peek();
-        if ( s != null )
+        for ( Frame frame = top; frame != null; frame = frame.parent )
         {
-            return s.getBoolean( name );
+            if ( !inheritVariables || frame.scope.hasBoolean( name ) )
+            {
+                return frame.scope.getBoolean( name );
+            }
+        }
+
+        return false;
+    }
+
+    public boolean getInheritedBoolean( String name )
+    {
+        if ( !inheritVariables || top == null )
+        {
+            return false;
+        }
+
+        for ( Frame frame = top.parent; frame != null; frame = frame.parent )
+        {
+            if ( frame.scope.hasBoolean( name ) )
+            {
+                return frame.scope.getBoolean( name );
+            }
         }
 
         return false;
@@ -131,8 +202,22 @@ public class ScopeContext
 
     public String getIndentWhitespace( int extraIndent )
     {
-        StringBuilder builder = new StringBuilder();
-        for ( int i = 0; i < indent + extraIndent; i++ )
+        return getIndentWhitespaceForDepth( indent + extraIndent );
+    }
+
+    public static String getIndentWhitespaceForDepth( int depth )
+    {
+        if ( depth <= 0 )
+        {
+            return INDENTS[0];
+        }
+        else if ( depth < INDENTS.length )
+        {
+            return INDENTS[depth];
+        }
+
+        StringBuilder builder = new StringBuilder( INDENTS[INDENTS.length - 1] );
+        for ( int i = INDENTS.length - 1; i < depth; i++ )
         {
             builder.append( INDENT_WHITESPACE );
         }
@@ -145,14 +230,67 @@ public class ScopeContext
      */
     public Hook findHook( Node node )
     {
-        for ( HookBinding binding : stack.peek().getBindings() )
+        return top == null ? null : top.scope.getHookIndex().find( node );
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * Start over for a new render, so its suppliers are called again. Copies made before keep what was supplied to them.
+     */
+    void clearSupplied()
+    {
+        supplied = new Supplied();
+    }
+
+    /**
+     * What the supplier of the value supplied in this render, it is only called the first time.
+     */
+    Scope.Value supply( Scope.Value value )
+    {
+        return supplied.get( value );
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    private static class Frame
+    {
+        private final Scope scope;
+        private final Frame parent;
+
+        Frame( Scope scope, Frame parent )
         {
-            if ( binding.matches( node ) )
+            this.scope = scope;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Async hooks may read variables from other threads, so access is synchronized. Suppliers that read other supplied variables
+     * re-enter on the same thread.
+     */
+    private static class Supplied
+    {
+        private Map<Scope.Value, Scope.Value> values;
+
+        synchronized Scope.Value get( Scope.Value value )
+        {
+            Scope.Value outcome = values == null ? null : values.get( value );
+            if ( outcome == null )
             {
-                return binding.getHook();
+                outcome = value.supply();
+                if ( values == null )
+                {
+                    values = new IdentityHashMap<>();
+                }
+                values.put( value, outcome );
             }
-        }
 
-        return null;
+            return outcome;
+        }
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.*;
+
+/**
+ * The variable and boolean names a compiled template uses, each assigned an index into the flat arrays of a {@link Scope}. Shared by
+ * all Blocks of the template and immutable once the template is compiled.
+ */
+class ScopeLayout
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private final Map<String, ScopeSlot> variables;
+    private final Map<String, ScopeSlot> booleans;
+    private final String[] variableNames;
+    private final String[] booleanNames;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    private ScopeLayout( List<String> variableNames, List<String> booleanNames )
+    {
+        this.variableNames = variableNames.toArray( new String[0] );
+        this.booleanNames = booleanNames.toArray( new String[0] );
+
+        variables = new HashMap<>();
+        for ( int i = 0; i < this.variableNames.length; i++ )
+        {
+            variables.put( this.variableNames[i], new ScopeSlot( this, this.variableNames[i], i, false ) );
+        }
+
+        booleans = new HashMap<>();
+        for ( int i = 0; i < this.booleanNames.length; i++ )
+        {
+            booleans.put( this.booleanNames[i], new ScopeSlot( this, this.booleanNames[i], i, true ) );
+        }
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // package
+    // ----------
+
+    ScopeSlot getVariableSlot( String name )
+    {
+        return variables.get( name );
+    }
+
+    ScopeSlot getBooleanSlot( String name )
+    {
+        return booleans.get( name );
+    }
+
+    int getVariableCount()
+    {
+        return variableNames.length;
+    }
+
+    int getBooleanCount()
+    {
+        return booleanNames.length;
+    }
+
+    String getVariableName( int index )
+    {
+        return variableNames[index];
+    }
+
+    String getBooleanName( int index )
+    {
+        return booleanNames[index];
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    /**
+     * Collects the names in the order they are found while compiling. Starting from an existing layout keeps its indexes and, when no
+     * new names are found, builds that same layout again so Scopes made for it stay usable.
+     */
+    static class Builder
+    {
+        private ScopeLayout base;
+        private List<String> variableNames = new ArrayList<>();
+        private List<String> booleanNames = new ArrayList<>();
+        private Map<String, Integer> variables = new HashMap<>();
+        private Map<String, Integer> booleans = new HashMap<>();
+
+        Builder( ScopeLayout base )
+        {
+            this.base = base;
+            if ( base != null )
+            {
+                for ( String name : base.variableNames )
+                {
+                    variable( name );
+                }
+                for ( String name : base.booleanNames )
+                {
+                    bool( name );
+                }
+            }
+        }
+
+        int variable( String name )
+        {
+            return add( name, variables, variableNames );
+        }
+
+        int bool( String name )
+        {
+            return add( name, booleans, booleanNames );
+        }
+
+        ScopeLayout build()
+        {
+            if ( base != null && base.variableNames.length == variableNames.size() && base.booleanNames.length == booleanNames.size() )
+            {
+                return base;
+            }
+
+            return new ScopeLayout( variableNames, booleanNames );
+        }
+
+        private int add( String name, Map<String, Integer> indexes, List<String> names )
+        {
+            Integer index = indexes.get( name );
+            if ( index == null )
+            {
+                index = names.size();
+                indexes.put( name, index );
+                names.add( name );
+            }
+
+            return index;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+/**
+ * Handle to a variable or boolean of a {@link Template}, resolved once (see {@link Template#getVariableSlot(String)}) so setting its
+ * value on each Block of the template is a plain array store instead of a hashed lookup by name.
+ */
+public final class ScopeSlot
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private final ScopeLayout layout;
+    private final String name;
+    private final int index;
+    private final boolean bool;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    ScopeSlot( ScopeLayout layout, String name, int index, boolean bool )
+    {
+        this.layout = layout;
+        this.name = name;
+        this.index = index;
+        this.bool = bool;
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public boolean isBoolean()
+    {
+        return bool;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "[%s %d] %s", bool ? "boolean" : "variable", index, name );
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    ScopeLayout getLayout()
+    {
+        return layout;
+    }
+
+    int getIndex()
+    {
+        return index;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.*;
+
+/**
+ * Placeholder for nodes that are inserted from an Iterator. The nodes are pulled one at a time while rendering and dropped right after
+ * they are written, so only one of them is in memory at a time. It can only be rendered once, and is closed when rendering it ends,
+ * whether the iterator was exhausted or not.
+ * <p>
+ * Under a tag bound to a hook the node is hardened like any other, so all of its nodes are pulled at once. A node that is never rendered
+ * is never closed.
+ */
+class StreamedNode extends Node
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private Iterator<? extends Node> iterator;
+    private Runnable onDone;
+    private boolean closed;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    /**
+     * @param onDone called once the node is closed (e.g. to close a Stream), may be null.
+     */
+    StreamedNode( Iterator<? extends Node> iterator, Runnable onDone )
+    {
+        super( NodeType.insertion );
+        setTagName( null );
+        this.iterator = iterator;
+        this.onDone = onDone;
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    /**
+     * The nodes are not known up front, so nothing can be inserted into them.
+     */
+    @Override
+    public int insert( String insertionName, Node insertNode )
+    {
+        return 0;
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    boolean hasNext()
+    {
+        if ( closed )
+        {
+            return false;
+        }
+
+        try
+        {
+            if ( iterator.hasNext() )
+            {
+                return true;
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            // A Stream may already build the next node when asked if there is one.
+            close();
+            throw e;
+        }
+
+        close();
+
+        return false;
+    }
+
+    Node next()
+    {
+        try
+        {
+            return iterator.next();
+        }
+        catch ( RuntimeException e )
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Nothing more is pulled from the iterator after this. Safe to call more than once.
+     */
+    void close()
+    {
+        if ( closed )
+        {
+            return;
+        }
+
+        closed = true;
+        if ( onDone != null )
+        {
+            Runnable done = onDone;
+            onDone = null;
+            done.run();
+        }
+    }
+}
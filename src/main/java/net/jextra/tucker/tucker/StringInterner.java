@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.util.*;
+
+/**
+ * Shares equal strings between the templates of one parser (tag names, attribute keys, class names), so each is only kept once.
+ * Unlike {@link String#intern()} it goes away with the parser and its templates, and it stops taking new strings once it holds its
+ * maximum. Not thread-safe, each parser has its own.
+ */
+final class StringInterner
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    static final int DEFAULT_MAX_SIZE = 8192;
+
+    private static final String[] NO_CLASSES = new String[0];
+
+    private final int maxSize;
+    private final Map<String, String> strings;
+    private final Map<String, String[]> classes;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    StringInterner()
+    {
+        this( DEFAULT_MAX_SIZE );
+    }
+
+    StringInterner( int maxSize )
+    {
+        this.maxSize = maxSize;
+        strings = new HashMap<>();
+        classes = new HashMap<>();
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // package
+    // ----------
+
+    String intern( String string )
+    {
+        if ( string == null )
+        {
+            return null;
+        }
+
+        String shared = strings.get( string );
+        if ( shared != null )
+        {
+            return shared;
+        }
+        else if ( strings.size() < maxSize )
+        {
+            strings.put( string, string );
+        }
+
+        return string;
+    }
+
+    /**
+     * The space-separated class names of a class attribute value, each shared with the same name in every other value (e.g. "btn" of
+     * "btn primary" and of "btn"). Equal values share the array.
+     */
+    String[] internClasses( String value )
+    {
+        String[] shared = classes.get( value );
+        if ( shared != null )
+        {
+            return shared;
+        }
+
+        List<String> names = new ArrayList<>();
+        int start = -1;
+        for ( int i = 0; i <= value.length(); i++ )
+        {
+            if ( i == value.length() || Character.isWhitespace( value.charAt( i ) ) )
+            {
+                if ( start >= 0 )
+                {
+                    names.add( intern( value.substring( start, i ) ) );
+                    start = -1;
+                }
+            }
+            else if ( start < 0 )
+            {
+                start = i;
+            }
+        }
+
+        String[] array = names.isEmpty() ? NO_CLASSES : names.toArray( new String[0] );
+        if ( classes.size() < maxSize )
+        {
+            classes.put( value, array );
+        }
+
+        return array;
+    }
+}
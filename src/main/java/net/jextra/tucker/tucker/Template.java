@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+/**
+ * An immutable, parsed and compiled block. A Template is thread-safe and is meant to be shared by all threads, each of which creates
+ * its own light-weight {@link Block} with {@link #newBlock()} to hold the variables, booleans, insertions and bindings of one render.
+ */
+public final class Template
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private final String name;
+    private final Block root;
+    private final RenderPlan plan;
+
+    // Plans of the other output modes, compiled when first used. Plans are immutable so a race only compiles one twice.
+    private final RenderPlan[] modePlans;
+
+    // Tucker-wide hooks and, per output mode, the hook each tag instruction of the plan resolved to against them.
+    private final CustomTags customTags;
+    private final ResolvedHooks[] modeHooks;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    /**
+     * @param root parsed block that must never be modified afterwards.
+     */
+    Template( Block root )
+    {
+        this( root, new CustomTags(), new StringInterner() );
+    }
+
+    /**
+     * @param interner shares strings with the other Templates of the same parser.
+     */
+    Template( Block root, CustomTags customTags, StringInterner interner )
+    {
+        this.customTags = customTags;
+        modeHooks = new ResolvedHooks[NodeWriter.OutputMode.values().length];
+        name = root.getTagName();
+        root.compact( interner );
+        this.root = root;
+        plan = RenderPlan.compile( root );
+        modePlans = new RenderPlan[NodeWriter.OutputMode.values().length];
+        modePlans[plan.getOutputMode().ordinal()] = plan;
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public RenderPlan getPlan()
+    {
+        return plan;
+    }
+
+    public RenderPlan getPlan( NodeWriter.OutputMode outputMode )
+    {
+        RenderPlan modePlan = modePlans[outputMode.ordinal()];
+        if ( modePlan == null )
+        {
+            modePlan = RenderPlan.compile( root, outputMode, plan.getLayout() );
+            modePlans[outputMode.ordinal()] = modePlan;
+        }
+
+        return modePlan;
+    }
+
+    /**
+     * Handle to set the variable on Blocks of this Template without looking it up by name, or null if the Template does not use it.
+     */
+    public ScopeSlot getVariableSlot( String name )
+    {
+        return plan.getLayout().getVariableSlot( name );
+    }
+
+    public ScopeSlot getBooleanSlot( String name )
+    {
+        return plan.getLayout().getBooleanSlot( name );
+    }
+
+    /**
+     * A new Block that shares this Template's structure and only holds its own scope and insertions.
+     */
+    public Block newBlock()
+    {
+        return new Block( this );
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    Block getRoot()
+    {
+        return root;
+    }
+
+    ScopeLayout getLayout()
+    {
+        return plan.getLayout();
+    }
+
+    HookIndex getCustomTags()
+    {
+        return customTags.getIndex();
+    }
+
+    /**
+     * For each instruction of the plan the custom tag hook of its node: the hook itself, {@link HookIndex#DYNAMIC} if it can only be
+     * matched once rendered, or null. Null altogether if there are no custom tags or the plan is not one of this Template's.
+     */
+    Hook[] getCustomHooks( RenderPlan modePlan )
+    {
+        HookIndex index = customTags.getIndex();
+        int mode = modePlan.getOutputMode().ordinal();
+        if ( index.isEmpty() || modePlans[mode] != modePlan )
+        {
+            return null;
+        }
+
+        // Immutable once resolved, a race only resolves twice.
+        ResolvedHooks resolved = modeHooks[mode];
+        if ( resolved == null || resolved.index != index )
+        {
+            resolved = new ResolvedHooks( index, modePlan );
+            modeHooks[mode] = resolved;
+        }
+
+        return resolved.hooks;
+    }
+
+    /**
+     * Empty insertion nodes, one per slot of the plan, to hold the insertions of one Block.
+     */
+    Node[] newInsertionPoints()
+    {
+        Node[] points = new Node[plan.getInsertionPointCount()];
+        for ( int i = 0; i < points.length; i++ )
+        {
+            points[i] = new Node( Node.NodeType.insertion );
+            points[i].setTagName( plan.getInsertionPoint( i ).getTagName() );
+        }
+
+        return points;
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    private static class ResolvedHooks
+    {
+        private final HookIndex index;
+        private final Hook[] hooks;
+
+        ResolvedHooks( HookIndex index, RenderPlan plan )
+        {
+            this.index = index;
+            RenderPlan.Instruction[] instructions = plan.getInstructions();
+            hooks = new Hook[instructions.length];
+            for ( int pc = 0; pc < instructions.length; pc++ )
+            {
+                if ( instructions[pc].getOp() == RenderPlan.Op.tag )
+                {
+                    hooks[pc] = index.resolve( instructions[pc].getNode() );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Binary form (.tbin) of parsed blocks, so they can be loaded without lexing. The file starts with a magic number and a version,
+ * followed by a table of every distinct string and then the node tree of each block. Strings are referred to by their index in the
+ * table and all numbers are variable-length.
+ */
+public final class TemplateBinary
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    public static final String EXTENSION = ".tbin";
+
+    // "TBIN"
+    public static final int MAGIC = 0x5442494e;
+    public static final int VERSION = 1;
+
+    private static final Node.NodeType[] NODE_TYPES = Node.NodeType.values();
+    private static final Segment.Type[] SEGMENT_TYPES = Segment.Type.values();
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    private TemplateBinary()
+    {
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public static void write( Collection<Block> blocks, OutputStream out )
+        throws IOException
+    {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for ( Block block : blocks )
+        {
+            collectStrings( block, strings );
+        }
+
+        DataOutputStream data = new DataOutputStream( new BufferedOutputStream( out ) );
+        data.writeInt( MAGIC );
+        writeNumber( data, VERSION );
+        writeNumber( data, strings.size() );
+        for ( String string : strings.keySet() )
+        {
+            byte[] bytes = string.getBytes( StandardCharsets.UTF_8 );
+            writeNumber( data, bytes.length );
+            data.write( bytes );
+        }
+
+        writeNumber( data, blocks.size() );
+        for ( Block block : blocks )
+        {
+            writeNode( data, block, strings );
+        }
+        data.flush();
+    }
+
+    /**
+     * Read the blocks from a buffer (e.g. a memory-mapped file) positioned at the start of the binary form.
+     */
+    public static List<Block> read( ByteBuffer in )
+        throws IOException
+    {
+        try
+        {
+            if ( in.getInt() != MAGIC )
+            {
+                throw new IOException( "Not a binary template" );
+            }
+
+            int version = readNumber( in );
+            if ( version != VERSION )
+            {
+                throw new IOException( "Unsupported binary template version " + version );
+            }
+
+            String[] strings = new String[readCount( in )];
+            byte[] bytes = new byte[64];
+            for ( int i = 0; i < strings.length; i++ )
+            {
+                int length = readCount( in );
+                if ( length > bytes.length )
+                {
+                    bytes = new byte[Math.max( length, bytes.length * 2 )];
+                }
+                in.get( bytes, 0, length );
+                strings[i] = new String( bytes, 0, length, StandardCharsets.UTF_8 );
+            }
+
+            int count = readCount( in );
+            List<Block> blocks = new ArrayList<>( count );
+            for ( int i = 0; i < count; i++ )
+            {
+                Node node = readNode( in, strings );
+                if ( !( node instanceof Block ) )
+                {
+                    throw new IOException( "Corrupt binary template, expected a block" );
+                }
+                blocks.add( (Block) node );
+            }
+
+            return blocks;
+        }
+        catch ( BufferUnderflowException | IndexOutOfBoundsException e )
+        {
+            throw new IOException( "Corrupt binary template", e );
+        }
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private static void collectStrings( Node node, Map<String, Integer> strings )
+    {
+        addString( node.getTagName(), strings );
+        addString( node.getRawText(), strings );
+        for ( Attribute att : node.attributes().values() )
+        {
+            addString( att.getKey(), strings );
+            addString( att.getValue(), strings );
+        }
+
+        for ( Segment segment : node.segments() )
+        {
+            addString( segment.getValue(), strings );
+            if ( segment.getNode() != null )
+            {
+                collectStrings( segment.getNode(), strings );
+            }
+        }
+
+        for ( Node child : node.children() )
+        {
+            collectStrings( child, strings );
+        }
+    }
+
+    private static void addString( String string, Map<String, Integer> strings )
+    {
+        if ( string != null && !strings.containsKey( string ) )
+        {
+            strings.put( string, strings.size() );
+        }
+    }
+
+    private static void writeNode( DataOutputStream out, Node node, Map<String, Integer> strings )
+        throws IOException
+    {
+        out.writeByte( node.getType().ordinal() );
+        writeString( out, node.getTagName(), strings );
+        writeString( out, node.getRawText(), strings );
+        writeNumber( out, node.getIndent() );
+        writeNumber( out, node.getRow() );
+        out.writeBoolean( node.isInline() );
+
+        writeNumber( out, node.attributes().size() );
+        for ( Attribute att : node.attributes().values() )
+        {
+            writeString( out, att.getKey(), strings );
+            writeString( out, att.getValue(), strings );
+        }
+
+        writeNumber( out, node.segments().size() );
+        for ( Segment segment : node.segments() )
+        {
+            out.writeByte( segment.getType().ordinal() );
+            writeString( out, segment.getValue(), strings );
+            out.writeBoolean( segment.getNode() != null );
+            if ( segment.getNode() != null )
+            {
+                writeNode( out, segment.getNode(), strings );
+            }
+        }
+
+        writeNumber( out, node.children().size() );
+        for ( Node child : node.children() )
+        {
+            writeNode( out, child, strings );
+        }
+    }
+
+    private static Node readNode( ByteBuffer in, String[] strings )
+        throws IOException
+    {
+        Node.NodeType type = NODE_TYPES[in.get()];
+        String tagName = readString( in, strings );
+        Node node = type == Node.NodeType.block ? new Block( tagName ) : new Node( type );
+        node.setTagName( tagName );
+        node.setRawText( readString( in, strings ) );
+        node.setIndent( readNumber( in ) );
+        node.setRow( readNumber( in ) );
+        node.setInline( in.get() != 0 );
+
+        for ( int i = readCount( in ); i > 0; i-- )
+        {
+            node.addAttribute( new Attribute( readString( in, strings ), readString( in, strings ) ) );
+        }
+
+        for ( int i = readCount( in ); i > 0; i-- )
+        {
+            Segment segment = new Segment( SEGMENT_TYPES[in.get()], readString( in, strings ) );
+            if ( in.get() != 0 )
+            {
+                segment.setNode( readNode( in, strings ) );
+            }
+            node.addSegment( segment );
+        }
+
+        for ( int i = readCount( in ); i > 0; i-- )
+        {
+            node.addChild( readNode( in, strings ) );
+        }
+
+        return node;
+    }
+
+    /**
+     * Index into the string table plus one, 0 is null.
+     */
+    private static void writeString( DataOutputStream out, String string, Map<String, Integer> strings )
+        throws IOException
+    {
+        writeNumber( out, string == null ? 0 : strings.get( string ) + 1 );
+    }
+
+    private static String readString( ByteBuffer in, String[] strings )
+    {
+        int index = readNumber( in );
+
+        return index == 0 ? null : strings[index - 1];
+    }
+
+    /**
+     * Unsigned variable-length number, 7 bits per byte with the high bit set on all but the last byte.
+     */
+    private static void writeNumber( DataOutputStream out, int number )
+        throws IOException
+    {
+        while ( ( number & ~0x7f ) != 0 )
+        {
+            out.writeByte( ( number & 0x7f ) | 0x80 );
+            number >>>= 7;
+        }
+        out.writeByte( number );
+    }
+
+    /**
+     * A number of entries that follow, each takes at least one byte so there cannot be more than are left.
+     */
+    private static int readCount( ByteBuffer in )
+        throws IOException
+    {
+        int count = readNumber( in );
+        if ( count < 0 || count > in.remaining() )
+        {
+            throw new IOException( "Corrupt binary template" );
+        }
+
+        return count;
+    }
+
+    private static int readNumber( ByteBuffer in )
+    {
+        int number = 0;
+        for ( int shift = 0; ; shift += 7 )
+        {
+            byte b = in.get();
+            number |= ( b & 0x7f ) << shift;
+            if ( b >= 0 )
+            {
+                return number;
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Build-time compiler of .thtml sources into {@link TemplateBinary} (.tbin) files, so a syntax error fails the build and the
+ * application can {@link Tucker#load(URL) load} its templates without lexing them. Meant to be run during process-resources, e.g.
+ * with the exec-maven-plugin:
+ * <pre>
+ *     java net.jextra.tucker.tucker.TemplateCompiler src/main/resources target/classes
+ * </pre>
+ */
+public class TemplateCompiler
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    public static final String SOURCE_EXTENSION = ".thtml";
+
+    private TuckerParser parser;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    public TemplateCompiler()
+    {
+        parser = new TuckerParser();
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public static void main( String[] args )
+        throws IOException
+    {
+        if ( args.length != 2 )
+        {
+            System.err.println( "Usage: TemplateCompiler <source-directory> <target-directory>" );
+            System.exit( 2 );
+        }
+
+        List<String> errors = new TemplateCompiler().compileAll( Paths.get( args[0] ), Paths.get( args[1] ) );
+        for ( String error : errors )
+        {
+            System.err.println( error );
+        }
+
+        if ( !errors.isEmpty() )
+        {
+            System.exit( 1 );
+        }
+    }
+
+    /**
+     * Compile every .thtml file under the source directory into a .tbin file at the same relative path under the target directory.
+     *
+     * @return a "file:row: message" line for every problem found, empty if all files compiled.
+     */
+    public List<String> compileAll( Path sourceDirectory, Path targetDirectory )
+        throws IOException
+    {
+        List<Path> sources;
+        try ( Stream<Path> stream = Files.walk( sourceDirectory ) )
+        {
+            sources = stream.filter( p -> p.getFileName().toString().endsWith( SOURCE_EXTENSION ) ).sorted()
+                .collect( Collectors.toList() );
+        }
+
+        List<String> errors = new ArrayList<>();
+        for ( Path source : sources )
+        {
+            Path relative = sourceDirectory.relativize( source );
+            String name = relative.getFileName().toString();
+            name = name.substring( 0, name.length() - SOURCE_EXTENSION.length() ) + TemplateBinary.EXTENSION;
+            Path target = targetDirectory.resolve( relative ).resolveSibling( name );
+
+            try
+            {
+                for ( TuckerParser.Problem problem : compile( source, target ) )
+                {
+                    errors.add( String.format( "%s:%s", relative, problem ) );
+                }
+            }
+            catch ( IOException e )
+            {
+                errors.add( String.format( "%s: %s", relative, e.getMessage() ) );
+            }
+        }
+
+        return errors;
+    }
+
+    /**
+     * Compile a single source file. The target is only written if the source has no problems.
+     */
+    public List<TuckerParser.Problem> compile( Path source, Path target )
+        throws IOException
+    {
+        List<TuckerParser.Problem> problems = parser.parse( source );
+        if ( !problems.isEmpty() )
+        {
+            return problems;
+        }
+
+        if ( target.getParent() != null )
+        {
+            Files.createDirectories( target.getParent() );
+        }
+
+        try ( OutputStream out = Files.newOutputStream( target ) )
+        {
+            TemplateBinary.write( parser.getRootBlocks(), out );
+        }
+
+        return problems;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.*;
+import java.util.stream.*;
+
+/**
+ * Loads many template files at once (e.g. at startup), parsing them in parallel on an {@link Executor}. All their blocks end up in
+ * one read-only namespace of {@link Template}s and the problems of every file are reported together.
+ * <pre>
+ *     TemplateLoader.Result result = new TemplateLoader().addPackage( "net/jextra/app/templates" ).load();
+ * </pre>
+ * Files ending in {@value TemplateBinary#EXTENSION} are loaded as precompiled binary templates. If a source and its compiled file
+ * are both added (e.g. {@link TemplateCompiler} output next to the copied resources), only the compiled one is loaded.
+ */
+public class TemplateLoader
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private final Executor executor;
+    private final CustomTags customTags;
+
+    // By URI so a file added twice is only loaded once.
+    private final Map<String, Source> sources;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    public TemplateLoader()
+    {
+        this( ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * @param executor runs one parse per file, e.g. a ForkJoinPool or a virtual thread per task executor.
+     */
+    public TemplateLoader( Executor executor )
+    {
+        this.executor = executor;
+        customTags = new CustomTags();
+        sources = new LinkedHashMap<>();
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    /**
+     * Add every template file in the directory and its sub-directories.
+     */
+    public TemplateLoader addDirectory( Path directory )
+        throws IOException
+    {
+        try ( Stream<Path> stream = Files.walk( directory ) )
+        {
+            for ( Path path : stream.filter( TemplateLoader::isTemplate ).sorted().collect( Collectors.toList() ) )
+            {
+                addPath( path );
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Add every template file of a classpath package (e.g. "net/jextra/app/templates") and its sub-packages, from directories as
+     * well as from jar files.
+     */
+    public TemplateLoader addPackage( String packageName )
+        throws IOException
+    {
+        return addPackage( packageName, TemplateLoader.class.getClassLoader() );
+    }
+
+    public TemplateLoader addPackage( String packageName, ClassLoader classLoader )
+        throws IOException
+    {
+        String prefix = packageName.replace( '.', '/' );
+        if ( !prefix.endsWith( "/" ) )
+        {
+            prefix += "/";
+        }
+
+        for ( URL url : Collections.list( classLoader.getResources( prefix ) ) )
+        {
+            if ( "file".equals( url.getProtocol() ) )
+            {
+                try
+                {
+                    addDirectory( Paths.get( url.toURI() ) );
+                }
+                catch ( URISyntaxException e )
+                {
+                    throw new IOException( e );
+                }
+            }
+            else if ( "jar".equals( url.getProtocol() ) )
+            {
+                JarURLConnection connection = (JarURLConnection) url.openConnection();
+                connection.setUseCaches( false );
+                try ( JarFile jar = connection.getJarFile() )
+                {
+                    for ( JarEntry entry : Collections.list( jar.entries() ) )
+                    {
+                        if ( entry.getName().startsWith( prefix ) && isTemplate( entry.getName() ) )
+                        {
+                            add( new URL( "jar:" + connection.getJarFileURL() + "!/" + entry.getName() ) );
+                        }
+                    }
+                }
+            }
+        }
+
+        return this;
+    }
+
+    public TemplateLoader addPath( Path path )
+    {
+        Path absolute = path.toAbsolutePath().normalize();
+        if ( absolute.getFileName().toString().endsWith( TemplateBinary.EXTENSION ) )
+        {
+            sources.put( absolute.toUri().toString(), parser -> parser.load( absolute ) );
+        }
+        else
+        {
+            sources.put( absolute.toUri().toString(), parser -> parser.parse( absolute ) );
+        }
+
+        return this;
+    }
+
+    public TemplateLoader add( URL url )
+    {
+        if ( url.getPath().endsWith( TemplateBinary.EXTENSION ) )
+        {
+            sources.put( url.toExternalForm(), parser -> parser.load( url ) );
+        }
+        else
+        {
+            sources.put( url.toExternalForm(), parser -> parser.parse( url ) );
+        }
+
+        return this;
+    }
+
+    public TemplateLoader addAll( Collection<URL> urls )
+    {
+        for ( URL url : urls )
+        {
+            add( url );
+        }
+
+        return this;
+    }
+
+    /**
+     * Register a hook for every loaded template (before or after loading), like {@link Tucker#registerCustomTag(String, Hook)}.
+     */
+    public void registerCustomTag( String hookSelector, Hook hook )
+    {
+        customTags.register( hookSelector, hook );
+    }
+
+    /**
+     * Parse all added files in parallel and wait for them. A file that cannot be read or parsed does not stop the others, it is
+     * reported in the problems of the Result. If two files define the same block, the file added last wins. A source whose compiled
+     * file was added as well is skipped.
+     */
+    public Result load()
+    {
+        List<Map.Entry<String, Source>> entries = new ArrayList<>( sources.size() );
+        for ( Map.Entry<String, Source> entry : sources.entrySet() )
+        {
+            if ( !isCompiled( entry.getKey() ) )
+            {
+                entries.add( entry );
+            }
+        }
+        List<CompletableFuture<Loaded>> futures = new ArrayList<>( entries.size() );
+        for ( Map.Entry<String, Source> entry : entries )
+        {
+            futures.add( CompletableFuture.supplyAsync( () -> load( entry.getValue() ), executor ) );
+        }
+
+        Map<String, Template> templates = new LinkedHashMap<>();
+        Map<String, String> templateSources = new HashMap<>();
+        Map<String, List<TuckerParser.Problem>> problems = new LinkedHashMap<>();
+        for ( int i = 0; i < entries.size(); i++ )
+        {
+            String name = entries.get( i ).getKey();
+            Loaded loaded = futures.get( i ).join();
+
+            List<TuckerParser.Problem> sourceProblems = new ArrayList<>( loaded.problems );
+            for ( Template template : loaded.templates.values() )
+            {
+                String previous = templateSources.put( template.getName(), name );
+                if ( previous != null )
+                {
+                    String message = String.format( "Block '%s' is also defined in %s", template.getName(), previous );
+                    sourceProblems.add( new TuckerParser.Problem( 0, message ) );
+                }
+                templates.put( template.getName(), template );
+            }
+
+            if ( !sourceProblems.isEmpty() )
+            {
+                problems.put( name, Collections.unmodifiableList( sourceProblems ) );
+            }
+        }
+
+        return new Result( Collections.unmodifiableMap( templates ), Collections.unmodifiableMap( problems ), entries.size() );
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private Loaded load( Source source )
+    {
+        TuckerParser parser = new TuckerParser( customTags );
+        try
+        {
+            source.parse( parser );
+
+            return new Loaded( parser.getTemplates(), parser.getProblems() );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            // Whatever goes wrong with one source, only that source is lost.
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            TuckerParser.Problem problem = new TuckerParser.Problem( 0, message );
+
+            return new Loaded( Collections.emptyMap(), Collections.singletonList( problem ) );
+        }
+    }
+
+    /**
+     * True for a source whose compiled file of the same base name was added as well.
+     */
+    private boolean isCompiled( String key )
+    {
+        if ( !key.endsWith( TemplateCompiler.SOURCE_EXTENSION ) )
+        {
+            return false;
+        }
+
+        String base = key.substring( 0, key.length() - TemplateCompiler.SOURCE_EXTENSION.length() );
+
+        return sources.containsKey( base + TemplateBinary.EXTENSION );
+    }
+
+    private static boolean isTemplate( Path path )
+    {
+        return Files.isRegularFile( path ) && isTemplate( path.getFileName().toString() );
+    }
+
+    private static boolean isTemplate( String name )
+    {
+        return name.endsWith( TemplateCompiler.SOURCE_EXTENSION ) || name.endsWith( TemplateBinary.EXTENSION );
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    /**
+     * Read-only namespace of every block that was loaded, shared by all threads.
+     */
+    public static class Result
+    {
+        private final Map<String, Template> templates;
+        private final Map<String, List<TuckerParser.Problem>> problems;
+        private final int sourceCount;
+
+        Result( Map<String, Template> templates, Map<String, List<TuckerParser.Problem>> problems, int sourceCount )
+        {
+            this.templates = templates;
+            this.problems = problems;
+            this.sourceCount = sourceCount;
+        }
+
+        public Map<String, Template> getTemplates()
+        {
+            return templates;
+        }
+
+        public Template getTemplate( String blockName )
+        {
+            return templates.get( blockName );
+        }
+
+        public Block buildBlock( String blockName )
+        {
+            Template template = templates.get( blockName );
+
+            return template == null ? null : template.newBlock();
+        }
+
+        /**
+         * Problems by file (URI), only files that have any.
+         */
+        public Map<String, List<TuckerParser.Problem>> getProblems()
+        {
+            return problems;
+        }
+
+        public boolean hasProblems()
+        {
+            return !problems.isEmpty();
+        }
+
+        public int getSourceCount()
+        {
+            return sourceCount;
+        }
+    }
+
+    private interface Source
+    {
+        void parse( TuckerParser parser )
+            throws IOException;
+    }
+
+    private static class Loaded
+    {
+        private final Map<String, Template> templates;
+        private final List<TuckerParser.Problem> problems;
+
+        Loaded( Map<String, Template> templates, List<TuckerParser.Problem> problems )
+        {
+            this.templates = templates;
+            this.problems = problems;
+        }
+    }
+}
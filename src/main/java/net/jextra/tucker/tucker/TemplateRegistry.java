@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker.tucker;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.jar.*;
+
+/**
+ * Shared cache of parsed .thtml sources (files, classpath resources or URLs), so the parse cost is only paid once per source.
+ * <p>
+ * Entries are kept in a bounded LRU and checked for modification (at most once per check interval). A modified source is re-parsed
+ * by a single thread while other threads keep getting the previous version, then the new {@link Tucker} is swapped in. Only the
+ * blocks that changed are compiled again, the others keep their {@link Template}s. Renders that are in-flight keep using the
+ * Templates they started with. Directories can also be watched with a {@link WatchService} so changes are noticed without polling.
+ * If a modified source cannot be loaded, the previous version is kept and it is tried again after the next change or check interval.
+ * <p>
+ * Sources ending in {@value TemplateBinary#EXTENSION} are loaded as precompiled binary templates.
+ */
+public class TemplateRegistry implements Closeable
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    public static final int DEFAULT_MAX_ENTRIES = 512;
+    public static final long DEFAULT_CHECK_INTERVAL = 2000;
+
+    private final Map<String, CacheEntry> entries;
+    private ClassLoader classLoader;
+    private volatile long checkInterval;
+
+    private WatchService watchService;
+    private Thread watchThread;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    public TemplateRegistry()
+    {
+        this( DEFAULT_MAX_ENTRIES );
+    }
+
+    public TemplateRegistry( int maxEntries )
+    {
+        entries = new LinkedHashMap<String, CacheEntry>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, CacheEntry> eldest )
+            {
+                return size() > maxEntries;
+            }
+        };
+        classLoader = TemplateRegistry.class.getClassLoader();
+        checkInterval = DEFAULT_CHECK_INTERVAL;
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public ClassLoader getClassLoader()
+    {
+        return classLoader;
+    }
+
+    public TemplateRegistry setClassLoader( ClassLoader classLoader )
+    {
+        this.classLoader = classLoader;
+        return this;
+    }
+
+    public long getCheckInterval()
+    {
+        return checkInterval;
+    }
+
+    /**
+     * Minimum milliseconds between modification checks of a single source. Negative means never check (e.g. production with
+     * resources that cannot change).
+     */
+    public TemplateRegistry setCheckInterval( long checkInterval )
+    {
+        this.checkInterval = checkInterval;
+        return this;
+    }
+
+    public Tucker get( Path path )
+        throws IOException
+    {
+        return get( new PathSource( path.toAbsolutePath().normalize() ) );
+    }
+
+    public Tucker get( URL url )
+        throws IOException
+    {
+        return get( new UrlSource( url ) );
+    }
+
+    /**
+     * Load a classpath resource (e.g. "net/jextra/app/page.thtml") using this registry's ClassLoader.
+     */
+    public Tucker getResource( String name )
+        throws IOException
+    {
+        URL url = classLoader.getResource( name );
+        if ( url == null )
+        {
+            throw new FileNotFoundException( "Classpath resource not found: " + name );
+        }
+
+        return get( url );
+    }
+
+    /**
+     * Convenience to build a Block directly from a cached source.
+     */
+    public Block buildBlock( Path path, String blockName )
+        throws IOException
+    {
+        Template template = get( path ).getTemplate( blockName );
+
+        return template == null ? null : template.newBlock();
+    }
+
+    /**
+     * Force the source to be re-parsed the next time it is requested.
+     */
+    public void invalidate( Path path )
+    {
+        invalidateKey( new PathSource( path.toAbsolutePath().normalize() ).getKey() );
+    }
+
+    public void invalidate( URL url )
+    {
+        invalidateKey( new UrlSource( url ).getKey() );
+    }
+
+    /**
+     * @return why the last reload of the source failed while its previous version is still served, or null.
+     */
+    public Exception getFailure( Path path )
+    {
+        return getFailure( new PathSource( path.toAbsolutePath().normalize() ).getKey() );
+    }
+
+    public Exception getFailure( URL url )
+    {
+        return getFailure( new UrlSource( url ).getKey() );
+    }
+
+    public void clear()
+    {
+        synchronized ( entries )
+        {
+            entries.clear();
+        }
+    }
+
+    public int size()
+    {
+        synchronized ( entries )
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Watch the directory for changes so modified files are re-parsed on their next request without waiting for the check interval.
+     * Sub-directories are not watched.
+     */
+    public synchronized void watch( Path directory )
+        throws IOException
+    {
+        if ( watchService == null )
+        {
+            watchService = directory.getFileSystem().newWatchService();
+            watchThread = new Thread( this::processWatchEvents, "tucker-template-watch" );
+            watchThread.setDaemon( true );
+            watchThread.start();
+        }
+
+        directory.toAbsolutePath().normalize().register( watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE );
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if ( watchService != null )
+        {
+            watchService.close();
+            watchThread.interrupt();
+            watchService = null;
+            watchThread = null;
+        }
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private Tucker get( Source source )
+        throws IOException
+    {
+        CacheEntry entry;
+        synchronized ( entries )
+        {
+            entry = entries.get( source.getKey() );
+        }
+
+        if ( entry == null )
+        {
+            return load( source );
+        }
+
+        if ( entry.isStale( checkInterval ) && entry.reloading.compareAndSet( false, true ) )
+        {
+            try
+            {
+                return reload( source, entry );
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                // Keep serving the last good version instead of failing every request until the source is fixed.
+                entry.fail( e );
+                return entry.tucker;
+            }
+            finally
+            {
+                entry.reloading.set( false );
+            }
+        }
+
+        return entry.tucker;
+    }
+
+    /**
+     * Parse outside of any lock, then swap the new entry in.
+     */
+    private Tucker load( Source source )
+        throws IOException
+    {
+        long lastModified = source.getLastModified();
+        CacheEntry entry = new CacheEntry( source, source.load(), lastModified );
+        synchronized ( entries )
+        {
+            entries.put( source.getKey(), entry );
+        }
+
+        return entry.tucker;
+    }
+
+    /**
+     * Like load, but the blocks that did not change keep the Templates of the current entry.
+     */
+    private Tucker reload( Source source, CacheEntry entry )
+        throws IOException
+    {
+        long lastModified = source.getLastModified();
+        CacheEntry newEntry = new CacheEntry( source, source.reload( entry.tucker ), lastModified );
+        synchronized ( entries )
+        {
+            entries.put( source.getKey(), newEntry );
+        }
+
+        return newEntry.tucker;
+    }
+
+    private void invalidateKey( String key )
+    {
+        CacheEntry entry;
+        synchronized ( entries )
+        {
+            entry = entries.get( key );
+        }
+
+        if ( entry != null )
+        {
+            entry.stale = true;
+        }
+    }
+
+    private Exception getFailure( String key )
+    {
+        CacheEntry entry;
+        synchronized ( entries )
+        {
+            entry = entries.get( key );
+        }
+
+        return entry == null ? null : entry.failure;
+    }
+
+    private static boolean isBinary( String name )
+    {
+        return name.endsWith( TemplateBinary.EXTENSION );
+    }
+
+    private void processWatchEvents()
+    {
+        try
+        {
+            for ( ; ; )
+            {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for ( WatchEvent<?> event : key.pollEvents() )
+                {
+                    if ( event.context() instanceof Path )
+                    {
+                        invalidate( directory.resolve( (Path) event.context() ) );
+                    }
+                }
+                key.reset();
+            }
+        }
+        catch ( InterruptedException | ClosedWatchServiceException e )
+        {
+            // Closed.
+        }
+    }
+
+    // ============================================================
+    // Inner Classes
+    // ============================================================
+
+    private interface Source
+    {
+        String getKey();
+
+        /**
+         * @return modification time in milliseconds or 0 if unknown.
+         */
+        long getLastModified()
+            throws IOException;
+
+        Tucker load()
+            throws IOException;
+
+        Tucker reload( Tucker previous )
+            throws IOException;
+    }
+
+    private static class PathSource implements Source
+    {
+        private Path path;
+
+        PathSource( Path path )
+        {
+            this.path = path;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return path.toUri().toString();
+        }
+
+        @Override
+        public long getLastModified()
+            throws IOException
+        {
+            return Files.getLastModifiedTime( path ).toMillis();
+        }
+
+        @Override
+        public Tucker load()
+            throws IOException
+        {
+            if ( isBinary( path.getFileName().toString() ) )
+            {
+                Tucker tucker = new Tucker();
+                tucker.load( path );
+                return tucker;
+            }
+
+            return new Tucker( path );
+        }
+
+        @Override
+        public Tucker reload( Tucker previous )
+            throws IOException
+        {
+            Tucker tucker = new Tucker( previous );
+            if ( isBinary( path.getFileName().toString() ) )
+            {
+                tucker.load( path );
+            }
+            else
+            {
+                tucker.reparse( path );
+            }
+            return tucker;
+        }
+    }
+
+    private static class UrlSource implements Source
+    {
+        private URL url;
+
+        UrlSource( URL url )
+        {
+            this.url = url;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return url.toExternalForm();
+        }
+
+        @Override
+        public long getLastModified()
+            throws IOException
+        {
+            URLConnection connection = url.openConnection();
+            // Do not hold on to cached jar files, they may be the ones being replaced.
+            connection.setUseCaches( false );
+            if ( connection instanceof JarURLConnection )
+            {
+                // A local jar is checked by its own time, so no JarFile is opened.
+                JarURLConnection jarConnection = (JarURLConnection) connection;
+                URL jarUrl = jarConnection.getJarFileURL();
+                if ( "file".equals( jarUrl.getProtocol() ) )
+                {
+                    try
+                    {
+                        return Files.getLastModifiedTime( Paths.get( jarUrl.toURI() ) ).toMillis();
+                    }
+                    catch ( URISyntaxException e )
+                    {
+                        throw new IOException( e );
+                    }
+                }
+
+                // Without caches the connection opens a JarFile of its own.
+                try ( JarFile jar = jarConnection.getJarFile() )
+                {
+                    return jarConnection.getLastModified();
+                }
+            }
+            else if ( connection instanceof HttpURLConnection )
+            {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                http.setRequestMethod( "HEAD" );
+                try
+                {
+                    return http.getLastModified();
+                }
+                finally
+                {
+                    http.disconnect();
+                }
+            }
+
+            try
+            {
+                return connection.getLastModified();
+            }
+            finally
+            {
+                connection.getInputStream().close();
+            }
+        }
+
+        @Override
+        public Tucker load()
+            throws IOException
+        {
+            if ( isBinary( url.getPath() ) )
+            {
+                Tucker tucker = new Tucker();
+                tucker.load( url );
+                return tucker;
+            }
+
+            return new Tucker( url );
+        }
+
+        @Override
+        public Tucker reload( Tucker previous )
+            throws IOException
+        {
+            Tucker tucker = new Tucker( previous );
+            if ( isBinary( url.getPath() ) )
+            {
+                tucker.load( url );
+            }
+            else
+            {
+                tucker.reparse( url );
+            }
+            return tucker;
+        }
+    }
+
+    private static class CacheEntry
+    {
+        private final Source source;
+        private final Tucker tucker;
+        private final long lastModified;
+        private final AtomicBoolean reloading;
+        private volatile long lastChecked;
+        private volatile boolean stale;
+        private volatile Exception failure;
+
+        CacheEntry( Source source, Tucker tucker, long lastModified )
+        {
+            this.source = source;
+            this.tucker = tucker;
+            this.lastModified = lastModified;
+            reloading = new AtomicBoolean();
+            lastChecked = System.currentTimeMillis();
+        }
+
+        void fail( Exception e )
+        {
+            failure = e;
+            stale = false;
+            lastChecked = System.currentTimeMillis();
+        }
+
+        boolean isStale( long checkInterval )
+        {
+            if ( stale )
+            {
+                return true;
+            }
+            else if ( checkInterval < 0 )
+            {
+                return false;
+            }
+
+            long now = System.currentTimeMillis();
+            if ( now - lastChecked < checkInterval )
+            {
+                return false;
+            }
+            lastChecked = now;
+
+            try
+            {
+                return source.getLastModified() != lastModified;
+            }
+            catch ( IOException e )
+            {
+                // Source has gone away (e.g. being replaced), keep what we have.
+                return false;
+            }
+        }
+    }
+}
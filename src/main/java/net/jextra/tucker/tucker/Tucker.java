@@ -49,7 +49,10 @@ public class Tucker
     public static final String GT = "&gt;";
 
     private TuckerParser parser;
-    private List<Hook> customTags;
+    private CustomTags customTags;
+
+    // Replaced as a whole after every parse so that other threads always see a complete set.
+    private volatile Map<String, Template> templates;
 
     // ============================================================
     // Constructors
@@ -57,8 +60,19 @@ public class Tucker
 
     public Tucker()
     {
-        parser = new TuckerParser();
-        customTags = new ArrayList<>();
+        customTags = new CustomTags();
+        parser = new TuckerParser( customTags );
+        templates = Collections.emptyMap();
+    }
+
+    /**
+     * Tucker sharing the custom tags of the previous one, whose reparse only compiles the blocks that differ from the previous one's.
+     */
+    Tucker( Tucker previous )
+    {
+        customTags = previous.customTags;
+        parser = new TuckerParser( previous.parser );
+        templates = previous.templates;
     }
 
     public Tucker( Path path )
@@ -108,51 +122,131 @@ public class Tucker
         throws IOException
     {
         parser.parse( path );
+        templates = parser.getTemplates();
     }
 
     public void parse( File file )
         throws IOException
     {
         parser.parse( file );
+        templates = parser.getTemplates();
     }
 
     public void parse( InputStream inputStream )
         throws IOException
     {
         parser.parse( inputStream );
+        templates = parser.getTemplates();
     }
 
     public void parse( URL asset )
         throws IOException
     {
         parser.parse( asset );
+        templates = parser.getTemplates();
     }
 
     public void parse( BufferedReader reader )
         throws IOException
     {
         parser.parse( reader );
+        templates = parser.getTemplates();
     }
 
-    public void registerCustomTags( Hook tag )
+    /**
+     * Load precompiled blocks (see {@link TemplateBinary} and {@link TemplateCompiler}) instead of parsing source.
+     */
+    public void load( Path path )
+        throws IOException
+    {
+        parser.load( path );
+        templates = parser.getTemplates();
+    }
+
+    public void load( URL asset )
+        throws IOException
     {
-        customTags.add( tag );
+        parser.load( asset );
+        templates = parser.getTemplates();
+    }
+
+    public void load( InputStream inputStream )
+        throws IOException
+    {
+        parser.load( inputStream );
+        templates = parser.getTemplates();
     }
 
     /**
-     * Locate block with the given blockName and return a clone of it.
+     * Parse a new version of the source, only the blocks whose text changed since the last parse are compiled again. Templates of the
+     * other blocks are kept as they are.
      */
-    public Block buildBlock( String blockName )
+    public void reparse( Path path )
+        throws IOException
+    {
+        parser.reparse( path );
+        templates = parser.getTemplates();
+    }
+
+    public void reparse( URL asset )
+        throws IOException
+    {
+        parser.reparse( asset );
+        templates = parser.getTemplates();
+    }
+
+    /**
+     * Register a hook for every template of this Tucker, bound to the tag name of its {@link HookTag} annotation.
+     */
+    public void registerCustomTags( Hook tag )
     {
-        Block template = parser.getBlock( blockName );
-        if ( template == null )
+        HookTag annotation = tag.getClass().getAnnotation( HookTag.class );
+        if ( annotation == null )
         {
-            return null;
+            throw new IllegalArgumentException( tag.getClass().getName() + " is not annotated with @HookTag" );
         }
 
-        Block block = new Block( template );
+        registerCustomTag( annotation.value(), tag );
+    }
+
+    /**
+     * Register a hook for every template of this Tucker (before or after parsing). Each template resolves its tags against the
+     * registered hooks once, tags that no hook can match are not looked at while rendering. Hooks bound to a Block take precedence.
+     */
+    public void registerCustomTag( String hookSelector, Hook hook )
+    {
+        customTags.register( hookSelector, hook );
+    }
+
+    /**
+     * The immutable, thread-safe Template for the given blockName. Each thread can create its own light-weight Block from it with
+     * {@link Template#newBlock()}.
+     */
+    public Template getTemplate( String blockName )
+    {
+        return templates.get( blockName );
+    }
+
+    /**
+     * Compile the block with the given blockName into a flat {@link RenderPlan}. The plan is compiled once and shared by every Block
+     * built from it.
+     */
+    public RenderPlan compile( String blockName )
+    {
+        Template template = templates.get( blockName );
+
+        return template == null ? null : template.getPlan();
+    }
+
+    /**
+     * Locate block with the given blockName and return a new instance of it. The instance shares the parsed structure and only copies
+     * the parts of it that are modified.
+     */
+    public Block buildBlock( String blockName )
+    {
+        Template template = templates.get( blockName );
 
-        return block;
+        return template == null ? null : template.newBlock();
     }
 
     // ----------
@@ -161,7 +255,7 @@ public class Tucker
 
     private void printTokens()
     {
-        for ( Block block : parser.getBlocks() )
+        for ( Block block : parser.getRootBlocks() )
         {
             System.out.printf( "In | %-9s | %s\n", "Type", "Value" );
             System.out.println( "----------------------------------------------------------------------" );
@@ -23,6 +23,9 @@ package net.jextra.tucker.tucker;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
 
@@ -82,10 +85,52 @@ public class TuckerParser
     public static final String LT = "&lt;";
     public static final String GT = "&gt;";
 
+    // Files at least this big are memory-mapped rather than read.
+    private static final int MAP_THRESHOLD = 64 * 1024;
+
     private int row;
     private HashMap<String, Block> blocks;
+    private Map<String, Template> templates;
     private Block activeBlock;
     private List<Problem> problems;
+    private CustomTags customTags;
+    private StringInterner interner;
+
+    // Blocks of the last parse by name, for reparse.
+    private Map<String, Section> sections;
+
+    // Scratch buffers reused for every line, a line is only copied into specials if it has something to transform.
+    private StringBuilder specials;
+    private StringBuilder nameBuilder;
+    private StringBuilder valueBuilder;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    public TuckerParser()
+    {
+        this( new CustomTags() );
+    }
+
+    TuckerParser( CustomTags customTags )
+    {
+        this.customTags = customTags;
+        interner = new StringInterner();
+        specials = new StringBuilder();
+        nameBuilder = new StringBuilder();
+        valueBuilder = new StringBuilder();
+    }
+
+    /**
+     * New parser whose {@link #reparse(CharSequence)} can reuse the blocks of the previous parser's last parse.
+     */
+    TuckerParser( TuckerParser previous )
+    {
+        this( previous.customTags );
+        sections = previous.sections;
+        interner = previous.interner;
+    }
 
     // ============================================================
     // Methods
@@ -98,64 +143,229 @@ public class TuckerParser
     public List<Problem> parse( Path path )
         throws IOException
     {
-        try ( BufferedReader reader = Files.newBufferedReader( path ) )
-        {
-            return parse( reader );
-        }
+        return parse( read( path, StandardCharsets.UTF_8.newDecoder() ) );
     }
 
     public List<Problem> parse( File file )
         throws IOException
     {
-        try ( BufferedReader reader = new BufferedReader( new FileReader( file ) ) )
-        {
-            return parse( reader );
-        }
+        // Same decoding as a FileReader.
+        CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+
+        return parse( read( file.toPath(), decoder ) );
     }
 
     public List<Problem> parse( InputStream inputStream )
         throws IOException
     {
-        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( inputStream ) ) )
+        try ( Reader reader = new InputStreamReader( inputStream ) )
         {
-            return parse( reader );
+            return parse( read( reader ) );
         }
     }
 
     public List<Problem> parse( URL asset )
         throws IOException
     {
-        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( asset.openStream() ) ) )
+        try ( Reader reader = new InputStreamReader( asset.openStream() ) )
         {
-            return parse( reader );
+            return parse( read( reader ) );
         }
     }
 
     public List<Problem> parse( BufferedReader in )
         throws IOException
     {
+        return parse( read( in ) );
+    }
+
+    /**
+     * Parse in-memory source (e.g. a String or a CharBuffer). The lines are lexed in place, only the names and values that end up in
+     * the Nodes are copied out.
+     */
+    public List<Problem> parse( CharSequence text )
+        throws IOException
+    {
+        sections = null;
+
+        return reparse( text );
+    }
+
+    public List<Problem> reparse( Path path )
+        throws IOException
+    {
+        return reparse( read( path, StandardCharsets.UTF_8.newDecoder() ) );
+    }
+
+    public List<Problem> reparse( URL asset )
+        throws IOException
+    {
+        try ( Reader reader = new InputStreamReader( asset.openStream() ) )
+        {
+            return reparse( read( reader ) );
+        }
+    }
+
+    /**
+     * Parse a new version of the previously parsed source. The source is split at its block lines and only the blocks whose text
+     * changed are lexed and compiled again, the others keep their Block and {@link Template} from the previous parse. Nodes of a
+     * reused block keep the rows they were first parsed at, problems are reported at their current rows.
+     */
+    public List<Problem> reparse( CharSequence text )
+        throws IOException
+    {
+        Map<String, Section> previous = sections == null ? Collections.emptyMap() : sections;
         blocks = new LinkedHashMap<>();
         problems = new ArrayList<>();
         activeBlock = null;
-        lexLines( in );
+        Map<String, Section> newSections = new HashMap<>();
+        Map<String, Template> newTemplates = new LinkedHashMap<>();
 
-        // Building the depth-hierarchy is done after lexing all the lines in the file.
-        for ( Block block : blocks.values() )
+        //
+        // Find the block lines, each block runs until the next one.
+        //
+        String blockName = null;
+        int blockStart = 0;
+        int blockRow = 1;
+        int length = text.length();
+        int lineRow = 1;
+        for ( int start = 0; start < length; lineRow++ )
         {
-            buildHierarchy( block );
+            int end = start;
+            while ( end < length && text.charAt( end ) != '\n' && text.charAt( end ) != '\r' )
+            {
+                end++;
+            }
+
+            int pos = start;
+            while ( pos < end && ( text.charAt( pos ) == ' ' || text.charAt( pos ) == '\t' ) )
+            {
+                pos++;
+            }
+
+            // A block line without a name does not start a new block.
+            String name = pos < end && text.charAt( pos ) == '=' ? lexBlockName( text, pos + 1, end ) : null;
+            if ( name != null && !name.isEmpty() )
+            {
+                lexSection( text, blockName, blockStart, start, blockRow, previous, newSections, newTemplates );
+                blockName = name;
+                blockStart = start;
+                blockRow = lineRow;
+            }
+
+            if ( end + 1 < length && text.charAt( end ) == '\r' && text.charAt( end + 1 ) == '\n' )
+            {
+                end++;
+            }
+            start = end + 1;
         }
+        lexSection( text, blockName, blockStart, length, blockRow, previous, newSections, newTemplates );
+
+        sections = newSections;
+        templates = Collections.unmodifiableMap( newTemplates );
 
         return problems;
     }
 
+    /**
+     * Load blocks from their binary form (see {@link TemplateBinary}) instead of parsing source. Large files are memory-mapped.
+     */
+    public void load( Path path )
+        throws IOException
+    {
+        load( readBytes( path ) );
+    }
+
+    public void load( URL asset )
+        throws IOException
+    {
+        try ( InputStream in = asset.openStream() )
+        {
+            load( in );
+        }
+    }
+
+    public void load( InputStream inputStream )
+        throws IOException
+    {
+        load( ByteBuffer.wrap( inputStream.readAllBytes() ) );
+    }
+
+    public void load( ByteBuffer in )
+        throws IOException
+    {
+        blocks = new LinkedHashMap<>();
+        problems = new ArrayList<>();
+        activeBlock = null;
+        sections = null;
+
+        Map<String, Template> newTemplates = new LinkedHashMap<>();
+        for ( Block block : TemplateBinary.read( in ) )
+        {
+            blocks.put( block.getTagName(), block );
+            newTemplates.put( block.getTagName(), new Template( block, customTags, interner ) );
+        }
+        templates = Collections.unmodifiableMap( newTemplates );
+    }
+
+    /**
+     * Problems of the last parse.
+     */
+    public List<Problem> getProblems()
+    {
+        return problems == null ? Collections.emptyList() : problems;
+    }
+
+    /**
+     * Copies of every block of the last parse, changing them does not change the Templates. To render a block use
+     * {@link #getTemplate(String)} and {@link Template#newBlock()} instead, which does not copy the structure.
+     */
     public Collection<Block> getBlocks()
     {
-        return blocks.values();
+        List<Block> copies = new ArrayList<>( blocks.size() );
+        for ( Block block : blocks.values() )
+        {
+            copies.add( new Block( block ) );
+        }
+
+        return copies;
     }
 
+    /**
+     * A copy of the block, see {@link #getBlocks()}.
+     */
     public Block getBlock( String blockName )
     {
-        return blocks.get( blockName );
+        Block block = blocks.get( blockName );
+
+        return block == null ? null : new Block( block );
+    }
+
+    /**
+     * Immutable compiled form of every block of the last parse.
+     */
+    public Map<String, Template> getTemplates()
+    {
+        return templates == null ? Collections.emptyMap() : templates;
+    }
+
+    public Template getTemplate( String blockName )
+    {
+        return getTemplates().get( blockName );
+    }
+
+    // ----------
+    // package
+    // ----------
+
+    /**
+     * The blocks the Templates are built on, which must not be changed.
+     */
+    Collection<Block> getRootBlocks()
+    {
+        return Collections.unmodifiableCollection( blocks.values() );
     }
 
     // ----------
@@ -163,41 +373,154 @@ public class TuckerParser
     // ----------
 
     /**
-     * Break the BufferedReader into lines and parse each line separately.
+     * Decode the whole file in one go.
+     */
+    private static CharBuffer read( Path path, CharsetDecoder decoder )
+        throws IOException
+    {
+        return decoder.decode( readBytes( path ) );
+    }
+
+    /**
+     * Large files are memory-mapped instead of being copied into a byte[] first.
      */
-    private void lexLines( BufferedReader in )
+    private static ByteBuffer readBytes( Path path )
+        throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) )
+        {
+            long size = channel.size();
+            if ( size >= MAP_THRESHOLD )
+            {
+                return channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            }
+
+            ByteBuffer bytes = ByteBuffer.allocate( (int) size );
+            while ( bytes.hasRemaining() && channel.read( bytes ) >= 0 )
+            {
+            }
+            bytes.flip();
+
+            return bytes;
+        }
+    }
+
+    private static CharSequence read( Reader in )
+        throws IOException
+    {
+        StringBuilder builder = new StringBuilder();
+        char[] chunk = new char[8192];
+        for ( int count = in.read( chunk ); count >= 0; count = in.read( chunk ) )
+        {
+            builder.append( chunk, 0, count );
+        }
+
+        return builder;
+    }
+
+    /**
+     * Lex one block (or the text before the first block) of the source, unless the block has the same text as in the previous parse.
+     */
+    private void lexSection( CharSequence text, String blockName, int start, int end, int firstRow, Map<String, Section> previous,
+        Map<String, Section> newSections, Map<String, Template> newTemplates )
+        throws IOException
+    {
+        if ( blockName == null )
+        {
+            // Nothing but comments or misplaced tags.
+            lexLines( text, start, end, firstRow );
+            return;
+        }
+
+        long hash = hash( text, start, end );
+        Section section = previous.get( blockName );
+        if ( section == null || section.hash != hash || section.length != end - start )
+        {
+            int problemCount = problems.size();
+            lexLines( text, start, end, firstRow );
+            buildHierarchy( activeBlock );
+
+            section = new Section( hash, end - start, activeBlock, new Template( activeBlock, customTags, interner ) );
+            for ( Problem problem : problems.subList( problemCount, problems.size() ) )
+            {
+                section.problems.add( new Problem( problem.getRow() - firstRow, problem.getMessage() ) );
+            }
+        }
+        else
+        {
+            blocks.put( blockName, section.block );
+            for ( Problem problem : section.problems )
+            {
+                problems.add( new Problem( problem.getRow() + firstRow, problem.getMessage() ) );
+            }
+        }
+
+        newSections.put( blockName, section );
+        newTemplates.put( blockName, section.template );
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the text between start and end.
+     */
+    private static long hash( CharSequence text, int start, int end )
+    {
+        long hash = 0xcbf29ce484222325L;
+        for ( int i = start; i < end; i++ )
+        {
+            hash = ( hash ^ text.charAt( i ) ) * 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Break the text between from and to into lines (\n, \r or \r\n like BufferedReader.readLine) and parse each line separately.
+     */
+    private void lexLines( CharSequence text, int from, int to, int firstRow )
         throws IOException
     {
         //
         // Scan each line and turn into nodes.
         //
-        row = 1;
-        for ( String line = in.readLine(); line != null; line = in.readLine(), row++ )
+        row = firstRow;
+        for ( int start = from; start < to; row++ )
         {
+            int end = start;
+            while ( end < to && text.charAt( end ) != '\n' && text.charAt( end ) != '\r' )
+            {
+                end++;
+            }
+
             // Find first non-space character on the line.
-            int i = 0;
-            while ( i < line.length() && ( line.charAt( i ) == ' ' || line.charAt( i ) == '\t' ) )
+            int i = start;
+            while ( i < end && ( text.charAt( i ) == ' ' || text.charAt( i ) == '\t' ) )
             {
                 i++;
             }
 
             // Ignore empty line?
-            if ( i >= line.length() )
+            if ( i < end )
             {
-                continue;
+                lexLine( text, start, i, end );
             }
 
-            lexLine( line, i );
+            if ( end + 1 < to && text.charAt( end ) == '\r' && text.charAt( end + 1 ) == '\n' )
+            {
+                end++;
+            }
+            start = end + 1;
         }
     }
 
     /**
-     * Read a single line. First figure out the line type, then tokenize the rest of the line accordingly.
+     * Read a single line (text between start and end, pos being the first non-space character). First figure out the line type, then
+     * tokenize the rest of the line accordingly.
      */
-    private void lexLine( String line, int indent )
+    private void lexLine( CharSequence text, int start, int pos, int end )
         throws IOException
     {
-        char c = line.charAt( indent );
+        int indent = pos - start;
+        char c = text.charAt( pos );
         switch ( c )
         {
             // Comment ... ignore.
@@ -207,14 +530,14 @@ public class TuckerParser
 
             // Block
             case '=':
-                lexBlock( line, indent + 1 );
+                lexBlock( text, pos + 1, end );
                 break;
 
             // Insertion Point
             case '>':
                 if ( activeBlock != null )
                 {
-                    Node node = lexInsertionPoint( line, indent + 1 );
+                    Node node = lexInsertionPoint( text, pos + 1, end );
                     if ( node != null )
                     {
                         node.setIndent( indent );
@@ -250,19 +573,28 @@ public class TuckerParser
             default:
                 if ( activeBlock != null )
                 {
-                    line = transformSpecials( line, indent );
-
-                    Node node = lexTag( line );
+                    // Most lines have nothing to transform and are lexed right out of the source text.
+                    Node node;
+                    if ( hasSpecials( text, pos, end ) )
+                    {
+                        transformSpecials( text, pos, end );
+                        node = lexTag( specials, 0, specials.length() );
+                    }
+                    else
+                    {
+                        node = lexTag( text, pos, end );
+                    }
                     node.setIndent( indent );
                     node.setRow( row );
                     activeBlock.addChild( node );
 
                     // Fill out inline Nodes.
-                    for ( Segment segment : node.getSegments() )
+                    for ( Segment segment : node.segments() )
                     {
                         if ( segment.getType() == Segment.Type.inline )
                         {
-                            Node inlineNode = lexTag( segment.getValue() );
+                            String value = segment.getValue();
+                            Node inlineNode = lexTag( value, 0, value.length() );
                             inlineNode.setInline( true );
                             segment.setNode( inlineNode );
                         }
@@ -276,18 +608,41 @@ public class TuckerParser
         }
     }
 
+    /**
+     * Does the line have any characters that transformSpecials would change?
+     */
+    private static boolean hasSpecials( CharSequence text, int start, int end )
+    {
+        for ( int i = start; i < end; i++ )
+        {
+            switch ( text.charAt( i ) )
+            {
+                case '\\':
+                case '$':
+                case '&':
+                case '`':
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Convert banged characters to single characters.
      * Convert variable/boolean names to variable/boolean sections.
+     * The transformed line is left in the (reused) specials buffer.
      */
-    private String transformSpecials( String line, int indent )
+    private void transformSpecials( CharSequence line, int start, int end )
     {
         VarState state = VarState.SCAN;
-        StringBuilder builder = new StringBuilder();
-        StringBuilder varNameBuilder = new StringBuilder();
+        StringBuilder builder = specials;
+        StringBuilder varNameBuilder = nameBuilder;
+        builder.setLength( 0 );
+        varNameBuilder.setLength( 0 );
         boolean inPhrase = false;
         boolean inVarParen = false;
-        for ( int i = indent; i < line.length(); i++ )
+        for ( int i = start; i < end; i++ )
         {
             char c = line.charAt( i );
             switch ( state )
@@ -440,7 +795,6 @@ public class TuckerParser
                 break;
         }
 
-        return builder.toString();
     }
 
     /**
@@ -473,10 +827,26 @@ public class TuckerParser
      *     =name
      * </pre>
      */
-    private Block lexBlock( String line, int indent )
+    private Block lexBlock( CharSequence line, int start, int end )
     {
-        StringBuilder builder = new StringBuilder();
-        for ( int i = indent; i < line.length(); i++ )
+        String name = lexBlockName( line, start, end );
+        if ( name.isEmpty() )
+        {
+            return null;
+        }
+
+        // make new block the active block.
+        activeBlock = new Block( name );
+        blocks.put( activeBlock.getTagName(), activeBlock );
+
+        return activeBlock;
+    }
+
+    private String lexBlockName( CharSequence line, int start, int end )
+    {
+        StringBuilder builder = nameBuilder;
+        builder.setLength( 0 );
+        for ( int i = start; i < end; i++ )
         {
             char c = line.charAt( i );
             switch ( c )
@@ -496,17 +866,7 @@ public class TuckerParser
             }
         }
 
-        String name = builder.toString().trim();
-        if ( name.isEmpty() )
-        {
-            return null;
-        }
-
-        // make new block the active block.
-        activeBlock = new Block( name );
-        blocks.put( activeBlock.getTagName(), activeBlock );
-
-        return activeBlock;
+        return builder.toString().trim();
     }
 
     /**
@@ -515,10 +875,11 @@ public class TuckerParser
      *     >name
      * </pre>
      */
-    private Node lexInsertionPoint( String line, int indent )
+    private Node lexInsertionPoint( CharSequence line, int start, int end )
     {
-        StringBuilder builder = new StringBuilder();
-        for ( int i = indent; i < line.length(); i++ )
+        StringBuilder builder = nameBuilder;
+        builder.setLength( 0 );
+        for ( int i = start; i < end; i++ )
         {
             char c = line.charAt( i );
             switch ( c )
@@ -545,13 +906,12 @@ public class TuckerParser
         return node;
     }
 
-    private Node lexTag( String line )
+    private Node lexTag( CharSequence line, int start, int end )
         throws IOException
     {
         State state = State.tag;
-        StringBuilder tagBuilder = new StringBuilder();
-        int pos = 0;
-        for ( ; pos < line.length(); pos++ )
+        int pos = start;
+        for ( ; pos < end; pos++ )
         {
             char c = line.charAt( pos );
             switch ( c )
@@ -573,10 +933,6 @@ public class TuckerParser
                 case '\t':
                     state = State.attributeStart;
                     break;
-
-                default:
-                    tagBuilder.append( c );
-                    break;
             }
 
             if ( state != State.tag )
@@ -586,7 +942,7 @@ public class TuckerParser
         }
 
         Node node = new Node( Node.NodeType.tag );
-        node.setTagName( tagBuilder.toString().trim() );
+        node.setTagName( slice( line, start, pos ).trim() );
         if ( node.getTagName().isEmpty() )
         {
             problems.add( new Problem( row, String.format( "Tag cannot have an empty name. Defaulting to '%s'", Node.DEFAULT_TAG ) ) );
@@ -595,22 +951,22 @@ public class TuckerParser
 
         if ( state == State.id || state == State.className )
         {
-            pos = lexTagShortcuts( node, line, pos + 1, state );
+            pos = lexTagShortcuts( node, line, pos + 1, end, state );
         }
 
-        pos = lexAttributes( node, line, pos );
-        lexPipeData( node, line, pos );
+        pos = lexAttributes( node, line, pos, end );
+        lexPipeData( node, line, pos, end );
 
         return node;
     }
 
-    private int lexTagShortcuts( Node node, String line, int indent, State state )
+    private int lexTagShortcuts( Node node, CharSequence line, int indent, int end, State state )
         throws IOException
     {
-        StringBuilder id = new StringBuilder();
-        StringBuilder className = new StringBuilder();
+        // Start of the id or class name being read.
+        int from = indent;
 
-        for ( int pos = indent; pos < line.length(); pos++ )
+        for ( int pos = indent; pos < end; pos++ )
         {
             char c = line.charAt( pos );
             switch ( state )
@@ -622,21 +978,16 @@ public class TuckerParser
                             throw new IOException( "Cannot specify more than one # id shortcut" );
 
                         case '.':
-                            node.addAttribute( "id", id.toString() );
-                            id.setLength( 0 );
+                            node.addAttribute( "id", slice( line, from, pos ) );
+                            from = pos + 1;
                             state = State.className;
                             break;
 
                         case ' ':
-                            node.addAttribute( "id", id.toString() );
-                            id.setLength( 0 );
+                            node.addAttribute( "id", slice( line, from, pos ) );
 
                             // Done with shortcuts
                             return pos + 1;
-
-                        default:
-                            id.append( c );
-                            break;
                     }
                     break;
 
@@ -644,47 +995,37 @@ public class TuckerParser
                     switch ( c )
                     {
                         case '#':
-                            node.addAttribute( "class", className.toString() );
-                            className.setLength( 0 );
+                            node.addAttribute( "class", slice( line, from, pos ) );
+                            from = pos + 1;
                             state = State.id;
                             break;
 
                         case '.':
-                            node.addAttribute( "class", className.toString() );
-                            className.setLength( 0 );
+                            node.addAttribute( "class", slice( line, from, pos ) );
+                            from = pos + 1;
                             state = State.className;
                             break;
 
                         case ' ':
-                            node.addAttribute( "class", className.toString() );
-                            className.setLength( 0 );
+                            node.addAttribute( "class", slice( line, from, pos ) );
 
                             // Done with shortcuts
                             return pos + 1;
-
-                        default:
-                            className.append( c );
-                            break;
                     }
                     break;
             }
         }
 
-        if ( id.length() > 0 )
-        {
-            node.addAttribute( "id", id.toString() );
-        }
-
-        if ( className.length() > 0 )
+        if ( end > from )
         {
-            node.addAttribute( "class", className.toString() );
+            node.addAttribute( state == State.id ? "id" : "class", slice( line, from, end ) );
         }
 
         // This is a signal that there is nothing left on this line.
         return -1;
     }
 
-    private int lexAttributes( Node node, String line, int indent )
+    private int lexAttributes( Node node, CharSequence line, int indent, int end )
     {
         if ( indent == -1 )
         {
@@ -692,11 +1033,13 @@ public class TuckerParser
         }
 
         State state = State.attributeStart;
-        StringBuilder attNameBuilder = new StringBuilder();
-        StringBuilder attValueBuilder = new StringBuilder();
+        StringBuilder attNameBuilder = nameBuilder;
+        StringBuilder attValueBuilder = valueBuilder;
+        attNameBuilder.setLength( 0 );
+        attValueBuilder.setLength( 0 );
         String activeAttName = null;
 
-        for ( int pos = indent; pos < line.length(); pos++ )
+        for ( int pos = indent; pos < end; pos++ )
         {
             char c = line.charAt( pos );
             switch ( state )
@@ -855,7 +1198,7 @@ public class TuckerParser
         return -1;
     }
 
-    private int lexPipeData( Node node, String line, int indent )
+    private int lexPipeData( Node node, CharSequence line, int indent, int end )
     {
         if ( indent == -1 )
         {
@@ -863,11 +1206,12 @@ public class TuckerParser
         }
 
         State state = State.pipeStart;
-        StringBuilder textBuilder = new StringBuilder();
-        StringBuilder inlineBuilder = new StringBuilder();
-        StringBuilder varBuilder = new StringBuilder();
+        StringBuilder textBuilder = valueBuilder;
+        StringBuilder inlineBuilder = nameBuilder;
+        textBuilder.setLength( 0 );
+        inlineBuilder.setLength( 0 );
 
-        for ( int pos = indent; pos < line.length(); pos++ )
+        for ( int pos = indent; pos < end; pos++ )
         {
             char c = line.charAt( pos );
             switch ( state )
@@ -950,6 +1294,11 @@ public class TuckerParser
         return -1;
     }
 
+    private static String slice( CharSequence text, int start, int end )
+    {
+        return text.subSequence( start, end ).toString();
+    }
+
     private void printTokens()
     {
         for ( Block block : blocks.values() )
@@ -1160,4 +1509,24 @@ public class TuckerParser
             return String.format( "%d: %s", row, message );
         }
     }
+
+    private static class Section
+    {
+        private final long hash;
+        private final int length;
+        private final Block block;
+        private final Template template;
+
+        // Rows relative to the block line.
+        private final List<Problem> problems;
+
+        Section( long hash, int length, Block block, Template template )
+        {
+            this.hash = hash;
+            this.length = length;
+            this.block = block;
+            this.template = template;
+            problems = new ArrayList<>();
+        }
+    }
 }
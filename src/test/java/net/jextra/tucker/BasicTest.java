@@ -22,7 +22,15 @@
 package net.jextra.tucker;
 
 import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.*;
+import java.util.stream.*;
 import net.jextra.tucker.tucker.*;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.*;
@@ -67,6 +75,255 @@ public class BasicTest
         assertTrue( goal.equals( block.toString().replace( "\r\n", "\n" ) ) );
     }
 
+    @Test
+    @DisplayName( "CharSequence parse" )
+    public void testCharSequenceParse()
+        throws IOException
+    {
+        Path path = Files.createTempFile( "tucker", ".thtml" );
+        try
+        {
+            for ( String name : new String[] { "basic", "shortcut", "variable", "insert", "hook" } )
+            {
+                String text = new Scanner( getClass().getResourceAsStream( name + "-in.thtml" ) ).useDelimiter( "\\A" ).next()
+                    .replace( "\r\n", "\n" );
+
+                TuckerParser reader = new TuckerParser();
+                reader.parse( new BufferedReader( new StringReader( text ) ) );
+                TuckerParser sequence = new TuckerParser();
+                sequence.parse( text.replace( "\n", "\r\n" ) );
+                Files.write( path, text.replace( "\n", "\r" ).getBytes( StandardCharsets.UTF_8 ) );
+                TuckerParser file = new TuckerParser();
+                file.parse( path );
+
+                assertFalse( reader.getTemplates().isEmpty() );
+                assertEquals( reader.getTemplates().keySet(), sequence.getTemplates().keySet() );
+                assertEquals( reader.getTemplates().keySet(), file.getTemplates().keySet() );
+                for ( String blockName : reader.getTemplates().keySet() )
+                {
+                    String goal = reader.getTemplate( blockName ).newBlock().toString();
+                    assertEquals( goal, sequence.getTemplate( blockName ).newBlock().toString() );
+                    assertEquals( goal, file.getTemplate( blockName ).newBlock().toString() );
+                }
+            }
+        }
+        finally
+        {
+            Files.delete( path );
+        }
+    }
+
+    @Test
+    @DisplayName( "Reparse" )
+    public void testReparse()
+        throws IOException
+    {
+        TuckerParser parser = new TuckerParser();
+        parser.parse( "== first\ndiv | one\n== second\nspan | two\n  b | bold\n== third\np |\n  i | a\\q\n" );
+        Template first = parser.getTemplate( "first" );
+        Template second = parser.getTemplate( "second" );
+        Template third = parser.getTemplate( "third" );
+
+        // Unchanged blocks are reused even when they moved, the changed one is compiled again.
+        String text = "// header\n== first\ndiv | one!\n== second\nspan | two\n  b | bold\n== third\np |\n  i | a\\q\n";
+        List<TuckerParser.Problem> problems = parser.reparse( text );
+        assertNotSame( first, parser.getTemplate( "first" ) );
+        assertTrue( parser.getTemplate( "first" ).newBlock().toString().contains( "one!" ) );
+        assertSame( second, parser.getTemplate( "second" ) );
+        assertSame( third, parser.getTemplate( "third" ) );
+        assertEquals( Arrays.asList( "first", "second", "third" ), new ArrayList<>( parser.getTemplates().keySet() ) );
+
+        // Problems of a reused block are reported at their new row.
+        assertEquals( 1, problems.size() );
+        assertEquals( 9, problems.get( 0 ).getRow() );
+
+        // Removed blocks are gone, a full parse starts over.
+        parser.reparse( "== second\nspan | two\n  b | bold\n" );
+        assertEquals( Collections.singleton( "second" ), parser.getTemplates().keySet() );
+        assertSame( second, parser.getTemplate( "second" ) );
+        parser.parse( "== second\nspan | two\n  b | bold\n" );
+        assertNotSame( second, parser.getTemplate( "second" ) );
+    }
+
+    @Test
+    @DisplayName( "Binary template" )
+    public void testBinaryTemplate()
+        throws IOException
+    {
+        Path dir = Files.createTempDirectory( "tucker" );
+        try
+        {
+            Path resources = Paths.get( "src/test/resources" );
+            assertEquals( Collections.emptyList(), new TemplateCompiler().compileAll( resources, dir ) );
+
+            for ( String name : new String[] { "basic", "shortcut", "variable", "insert", "hook" } )
+            {
+                Tucker parsed = new Tucker( getClass().getResourceAsStream( name + "-in.thtml" ) );
+                Tucker loaded = new Tucker();
+                loaded.load( dir.resolve( "net/jextra/tucker/" + name + "-in.tbin" ) );
+
+                Block block = loaded.buildBlock( "root" );
+                assertNotNull( block );
+                assertEquals( parsed.buildBlock( "root" ).toString(), block.toString() );
+            }
+
+            // Problems are reported and nothing is written.
+            Path bad = dir.resolve( "bad.thtml" );
+            Files.write( bad, Arrays.asList( "== root", "p | a\\q" ) );
+            Path target = dir.resolve( "out/bad.tbin" );
+            assertEquals( 1, new TemplateCompiler().compile( bad, target ).size() );
+            assertFalse( Files.exists( target ) );
+            assertThrows( IOException.class, () -> new Tucker().load( bad ) );
+        }
+        finally
+        {
+            try ( Stream<Path> files = Files.walk( dir ) )
+            {
+                for ( Path file : files.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() ) )
+                {
+                    Files.delete( file );
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName( "Template loader" )
+    public void testTemplateLoader()
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        Path dir = Files.createTempDirectory( "tucker" );
+        Path bad = dir.resolve( "bad.thtml" );
+        Path corrupt = dir.resolve( "corrupt.tbin" );
+        Path compiled = dir.resolve( "bad.tbin" );
+        try
+        {
+            Path resources = Paths.get( getClass().getResource( "basic-in.thtml" ).toURI() ).getParent();
+            TemplateLoader.Result result = new TemplateLoader( executor ).addDirectory( resources ).load();
+            assertEquals( 5, result.getSourceCount() );
+            assertNotNull( result.getTemplate( "item" ) );
+            assertNotNull( result.getTemplate( "custom-div" ) );
+
+            // Every file defines root, the last one wins and the others are reported.
+            Tucker variable = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+            assertEquals( variable.buildBlock( "root" ).toString(), result.buildBlock( "root" ).toString() );
+            assertEquals( 4, result.getProblems().size() );
+
+            // Sub-packages are included, here the example of the main resources.
+            result = new TemplateLoader( executor ).addPackage( "net/jextra/tucker" ).load();
+            assertEquals( 6, result.getSourceCount() );
+            assertNotNull( result.getTemplate( "item" ) );
+
+            // A broken file does not stop the others.
+            Files.write( bad, Arrays.asList( "== bad", "p#a#b" ) );
+            result = new TemplateLoader( executor ).addDirectory( dir ).add( getClass().getResource( "insert-in.thtml" ) ).load();
+            assertTrue( result.hasProblems() );
+            assertEquals( Collections.singleton( bad.toUri().toString() ), result.getProblems().keySet() );
+            assertNull( result.getTemplate( "bad" ) );
+            assertNotNull( result.getTemplate( "item" ) );
+
+            // Neither does a corrupt binary file or a source that throws.
+            Files.delete( bad );
+            new TemplateCompiler().compile( Paths.get( getClass().getResource( "insert-in.thtml" ).toURI() ), corrupt );
+            byte[] bytes = Files.readAllBytes( corrupt );
+            bytes = Arrays.copyOf( bytes, 10 );
+            System.arraycopy( new byte[] { -1, -1, -1, -1, 7 }, 0, bytes, 5, 5 );
+            Files.write( corrupt, bytes );
+            URL throwing = new URL( null, "test:throwing.thtml", new URLStreamHandler()
+            {
+                @Override
+                protected URLConnection openConnection( URL url )
+                {
+                    throw new UnsupportedOperationException( "No connection" );
+                }
+            } );
+            result = new TemplateLoader( executor ).addDirectory( dir ).add( throwing ).add( getClass().getResource( "insert-in.thtml" ) )
+                .load();
+            Set<String> failed = new HashSet<>( Arrays.asList( corrupt.toUri().toString(), throwing.toExternalForm() ) );
+            assertEquals( failed, result.getProblems().keySet() );
+            assertEquals( "Corrupt binary template", result.getProblems().get( corrupt.toUri().toString() ).get( 0 ).getMessage() );
+            assertNotNull( result.getTemplate( "item" ) );
+
+            // Only the compiled file is loaded when the source is next to it, so it is not reported twice (or parsed at all).
+            Files.delete( corrupt );
+            new TemplateCompiler().compile( Paths.get( getClass().getResource( "insert-in.thtml" ).toURI() ), compiled );
+            Files.write( bad, Arrays.asList( "== bad", "p#a#b" ) );
+            result = new TemplateLoader( executor ).addDirectory( dir ).load();
+            assertFalse( result.hasProblems() );
+            assertEquals( 1, result.getSourceCount() );
+            assertNotNull( result.getTemplate( "item" ) );
+        }
+        finally
+        {
+            executor.shutdown();
+            Files.deleteIfExists( bad );
+            Files.deleteIfExists( corrupt );
+            Files.deleteIfExists( compiled );
+            Files.delete( dir );
+        }
+    }
+
+    @Test
+    @DisplayName( "Compact nodes" )
+    public void testCompactNodes()
+        throws IOException
+    {
+        // Tag names, class values and each class name are shared between the templates of a parser.
+        TuckerParser parser = new TuckerParser();
+        parser.parse( "== first\np.btn.primary | one\n== second\np.btn.primary | two\np.btn | three\n" );
+        Node a = parser.getTemplate( "first" ).newBlock().findByStyleClass( "primary" );
+        Node b = parser.getTemplate( "second" ).newBlock().findByStyleClass( "primary" );
+        Node c = parser.getTemplate( "second" ).newBlock().getChildren().get( 1 );
+        assertSame( a.getTagName(), b.getTagName() );
+        assertSame( a.getTagName(), c.getTagName() );
+        assertEquals( new HashSet<>( Arrays.asList( "btn", "primary" ) ), a.getStyleClasses() );
+        String btn = a.getStyleClasses().stream().filter( "btn"::equals ).findFirst().get();
+        assertSame( btn, c.getStyleClasses().iterator().next() );
+        assertSame( a.getAttribute( "class" ).getValue(), b.getAttribute( "class" ).getValue() );
+
+        // Nodes without attributes, segments or children are still fully modifiable, attributes keep their order.
+        Node node = new Node();
+        assertTrue( node.getChildren().isEmpty() );
+        assertNull( node.getAttribute( "id" ) );
+        node.addAttribute( "id", "x" );
+        node.addAttribute( "class", "one" );
+        node.addAttribute( "class", "two" );
+        node.addAttribute( "title", "t" );
+        node.setAttribute( "id", "y" );
+        assertEquals( Arrays.asList( "class", "title", "id" ), new ArrayList<>( node.getAttributes().keySet() ) );
+        assertEquals( "one two", node.getAttribute( "class" ).getValue() );
+        node.getAttributes().values().removeIf( att -> "title".equals( att.getKey() ) );
+        assertEquals( Arrays.asList( "class", "id" ), new ArrayList<>( node.getAttributes().keySet() ) );
+        node.addText( "text" );
+        Block block = new Block( "block" );
+        block.addChild( node );
+        assertTrue( block.toString().contains( "<div id=\"y\" class=\"one two\">text</div>" ) );
+    }
+
+    @Test
+    @DisplayName( "Parser blocks are copies" )
+    public void testParserBlockCopies()
+        throws IOException
+    {
+        TuckerParser parser = new TuckerParser();
+        parser.parse( "== page\np.note | {name}\n" );
+        String goal = parser.getTemplate( "page" ).newBlock().toString();
+
+        Block block = parser.getBlock( "page" );
+        block.setVariable( "name", "changed" );
+        block.findByStyleClass( "note" ).setAttribute( "id", "x" );
+        block.addChild( new Block( "extra" ) );
+        for ( Block other : parser.getBlocks() )
+        {
+            other.clearChildren();
+        }
+        assertNull( parser.getBlock( "missing" ) );
+
+        assertEquals( goal, parser.getTemplate( "page" ).newBlock().toString() );
+        assertEquals( goal, parser.getBlock( "page" ).toString() );
+    }
+
     @Test
     @DisplayName( "Variable" )
     public void testVariables()
@@ -89,6 +346,109 @@ public class BasicTest
         assertTrue( goal.equals( block.toString().replace( "\r\n", "\n" ) ) );
     }
 
+    @Test
+    @DisplayName( "Slot" )
+    public void testSlots()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+        Template template = tucker.getTemplate( "root" );
+        ScopeSlot title = template.getVariableSlot( "title" );
+        assertNotNull( title );
+        assertNull( template.getVariableSlot( "not-used" ) );
+
+        Block byName = template.newBlock();
+        byName.setVariable( "title", "A <title>" );
+        byName.setVariable( "level", "0" );
+        Block bySlot = template.newBlock();
+        bySlot.setVariable( title, "A <title>" );
+        bySlot.setVariable( template.getVariableSlot( "level" ), "0" );
+        bySlot.setVariable( "not-used", "extra" );
+
+        assertEquals( byName.toString(), bySlot.toString() );
+        assertEquals( byName.getVariable( "title" ), bySlot.getVariable( "title" ) );
+        assertEquals( new HashSet<>( Arrays.asList( "title", "level", "not-used" ) ), bySlot.getVariableNames() );
+
+        // A Scope that is not laid out for the template falls back to the name.
+        Block other = tucker.buildBlock( "root" );
+        other.setScope( new Scope() );
+        other.setVariable( title, "plain" );
+        assertEquals( "plain", other.getVariable( "title" ) );
+
+        // Values are encoded when read, once.
+        bySlot.setVariable( title, "Caf\u00e9 & <b>" );
+        bySlot.setVariable( "extra", "<i>", false );
+        assertEquals( "Caf&eacute; &amp; &lt;b&gt;", bySlot.getVariable( "title" ) );
+        assertSame( bySlot.getVariable( "title" ), bySlot.getVariable( "title" ) );
+        assertEquals( "<i>", bySlot.getVariable( "extra" ) );
+        assertTrue( bySlot.toString().contains( "Caf&eacute; &amp; &lt;b&gt;" ) );
+    }
+
+    @Test
+    @DisplayName( "Typed variables" )
+    public void testTypedVariables()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+        Template template = tucker.getTemplate( "root" );
+
+        Block strings = template.newBlock();
+        strings.setVariable( "title", "A & B" );
+        strings.setVariable( "level", "-9223372036854775808" );
+        strings.setVariable( "level1", "1.25" );
+        strings.setVariable( "one", "x<y" );
+
+        Block typed = template.newBlock();
+        typed.setVariable( "title", new StringBuilder( "A & B" ) );
+        typed.setVariable( template.getVariableSlot( "level" ), Long.MIN_VALUE );
+        typed.setVariable( "level1", 1.25 );
+        typed.setVariable( "one", "[x<y]".toCharArray(), 1, 3 );
+
+        assertEquals( strings.toString(), typed.toString() );
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        typed.render( new NodeWriter.PageContextStub(), bytes );
+        assertEquals( strings.toString(), bytes.toString( "UTF-8" ) );
+        assertEquals( "-9223372036854775808", typed.getVariable( "level" ) );
+        assertEquals( "x&lt;y", typed.getVariable( "one" ) );
+
+        // Names the template does not use.
+        typed.setVariable( "count", 42 );
+        assertEquals( "42", typed.getVariable( "count" ) );
+    }
+
+    @Test
+    @DisplayName( "Supplied variables" )
+    public void testSuppliedVariables()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+        Template template = tucker.getTemplate( "root" );
+
+        Block strings = template.newBlock();
+        strings.setVariable( "title", "A & B" );
+        strings.setVariable( "level", "7" );
+
+        int[] calls = new int[3];
+        Block supplied = template.newBlock();
+        supplied.setVariable( "title", () -> { calls[0]++; return "A & B"; } );
+        supplied.setVariable( "level", () -> { calls[1]++; return 7; } );
+        supplied.setVariable( "not-used", () -> { calls[2]++; return "never"; } );
+
+        // Once per render, even though level is used three times.
+        assertEquals( strings.toString(), supplied.toString() );
+        assertArrayEquals( new int[] { 1, 1, 0 }, calls );
+        assertEquals( strings.toString(), supplied.toString() );
+        assertArrayEquals( new int[] { 2, 2, 0 }, calls );
+        assertEquals( "A &amp; B", supplied.getVariable( "title" ) );
+
+        // Every render gets a fresh value, also in copies of the Scope.
+        int[] counter = new int[1];
+        supplied.setVariable( "title", () -> ++counter[0] );
+        assertTrue( supplied.toString().contains( "<h1>1</h1>" ) );
+        assertTrue( new Block( supplied ).toString().contains( "<h1>2</h1>" ) );
+        assertTrue( supplied.toString().contains( "<h1>3</h1>" ) );
+    }
+
     @Test
     @DisplayName( "Insert" )
     public void testInserts()
@@ -114,6 +474,102 @@ public class BasicTest
 //        System.out.println( block.toString().replace( "\r\n", "\n" ) );
 //        System.out.println( goal );
         assertTrue( goal.equals( block.toString().replace( "\r\n", "\n" ) ) );
+
+        // Same rows in one go.
+        Block bulk = tucker.buildBlock( "root" );
+        bulk.setVariable( "title", "This is my first insert" );
+        List<Block> items = new ArrayList<>();
+        for ( int i = 0; i < 5; i++ )
+        {
+            Block item = tucker.buildBlock( "item" );
+            item.setVariable( "name", "ITEM " + i );
+            if ( i == 3 )
+            {
+                item.setVariable( "style", "strong" );
+            }
+            items.add( item );
+        }
+        assertEquals( 5, bulk.insertAll( "item", items ) );
+        assertEquals( 0, bulk.insert( "missing", new Block() ) );
+
+        // Inserting does not look through rows inserted before unless they have a matching insertion point, so it stays linear.
+        TuckerParser parser = new TuckerParser();
+        parser.parse( "== page\nul\n  >row\ndiv\n  >footer\n== row\nli\n  >cell\n" );
+        Block page = parser.getTemplate( "page" ).newBlock();
+        int[] visits = new int[1];
+        for ( int i = 0; i < 10000; i++ )
+        {
+            page.insert( "row", new Node( Node.NodeType.tag )
+            {
+                @Override
+                public int insert( String insertionName, Node insertNode )
+                {
+                    visits[0]++;
+                    return super.insert( insertionName, insertNode );
+                }
+            } );
+        }
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( 1, page.insert( "footer", Node.newRawNode( "f" ) ) );
+        }
+        assertEquals( 0, visits[0] );
+
+        // Rows with insertion points of their own still get their content.
+        page = parser.getTemplate( "page" ).newBlock();
+        for ( int i = 0; i < 3; i++ )
+        {
+            page.insert( "row", parser.getTemplate( "row" ).newBlock() );
+        }
+        assertEquals( 3, page.insert( "cell", Node.newRawNode( "c" ) ) );
+        assertEquals( 3, page.toString().split( "c", -1 ).length - 1 );
+        assertEquals( goal, bulk.toString().replace( "\r\n", "\n" ) );
+    }
+
+    @Test
+    @DisplayName( "StreamInsert" )
+    public void testStreamInsert()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "insert-in.thtml" ) );
+        Block block = tucker.buildBlock( "root" );
+        block.setVariable( "title", "This is my first insert" );
+
+        // Rows are only built while rendering.
+        int[] built = new int[1];
+        boolean[] closed = new boolean[1];
+        Stream<Integer> rows = IntStream.range( 0, 5 ).boxed().onClose( () -> closed[0] = true );
+        assertEquals( 1, block.insert( "item", rows, i -> {
+            built[0]++;
+            Block item = tucker.buildBlock( "item" );
+            item.setVariable( "name", "ITEM " + i );
+            if ( i == 3 )
+            {
+                item.setVariable( "style", "strong" );
+            }
+            return item;
+        } ) );
+        assertEquals( 0, built[0] );
+
+        String goal = new Scanner( getClass().getResourceAsStream( "insert-out.html" ) ).useDelimiter( "\\A" ).next().replace( "\r\n", "\n" );
+        StringBuilder builder = new StringBuilder();
+        block.render( new NodeWriter.PageContextStub(), builder );
+        assertEquals( goal, builder.toString().replace( "\r\n", "\n" ) );
+        assertEquals( 5, built[0] );
+        assertTrue( closed[0] );
+
+        // Closed right away when there is nowhere to insert, and when rendering stops early.
+        closed[0] = false;
+        assertEquals( 0, block.insert( "missing", Stream.of( new Block() ).onClose( () -> closed[0] = true ) ) );
+        assertTrue( closed[0] );
+
+        closed[0] = false;
+        Block failing = tucker.buildBlock( "root" );
+        failing.insert( "item", IntStream.range( 0, 5 ).boxed().onClose( () -> closed[0] = true ), i -> {
+            throw new IllegalStateException( "row " + i );
+        } );
+        assertThrows( IllegalStateException.class, () -> failing.render( new NodeWriter.PageContextStub(), new StringBuilder() ) );
+        assertTrue( closed[0] );
     }
 
     @Test
@@ -134,10 +590,539 @@ public class BasicTest
         assertTrue( goal.equals( block.toString().replace( "\r\n", "\n" ) ) );
     }
 
+    @Test
+    @DisplayName( "Custom tags" )
+    public void testCustomTags()
+        throws IOException
+    {
+        String goal = new Scanner( getClass().getResourceAsStream( "hook-out.html" ) ).useDelimiter( "\\A" ).next().replace( "\r\n", "\n" );
+
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "hook-in.thtml" ) );
+        tucker.registerCustomTags( new CustomDiv() );
+        Block block = tucker.buildBlock( "root" );
+        block.setVariable( "title", "This is my first hook" );
+        assertEquals( goal, block.toString().replace( "\r\n", "\n" ) );
+
+        // Hooks bound to the Block come first.
+        block.bind( "hook:custom-div", context -> {
+            Node node = new Node( Node.NodeType.tag );
+            node.setTagName( "span" );
+            return node;
+        } );
+        assertFalse( block.toString().contains( "hook-custom-div" ) );
+        assertTrue( block.toString().contains( "<span>" ) );
+
+        // Tags with variables are matched when rendered.
+        tucker = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+        int[] calls = new int[1];
+        tucker.registerCustomTag( "p.x", context -> {
+            calls[0]++;
+            Node node = new Node( Node.NodeType.tag );
+            node.setTagName( "b" );
+            return node;
+        } );
+        block = tucker.buildBlock( "root" );
+        block.setVariable( "one", "x" );
+        assertEquals( 2, block.toString().split( "<b>", -1 ).length - 1 );
+        assertEquals( 2, calls[0] );
+    }
+
+    @Test
+    @DisplayName( "Caching hook" )
+    public void testCachingHook()
+        throws IOException
+    {
+        String goal = new Scanner( getClass().getResourceAsStream( "hook-out.html" ) ).useDelimiter( "\\A" ).next().replace( "\r\n", "\n" );
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "hook-in.thtml" ) );
+        CachedDiv hook = new CachedDiv( new HookCache( HookCache.DEFAULT_MAX_BYTES ) );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            Block block = tucker.buildBlock( "root" );
+            block.bind( "hook:custom-div", hook );
+            block.setVariable( "title", "This is my first hook" );
+            assertEquals( goal, block.toString().replace( "\r\n", "\n" ) );
+        }
+        assertEquals( 1, hook.calls );
+        assertEquals( 1, hook.getHookCache().getEntryCount() );
+
+        // Another instance of the hook class and another translator do not get that output.
+        CachedDiv other = new CachedDiv( hook.getHookCache() );
+        Block otherBlock = tucker.buildBlock( "root" );
+        otherBlock.bind( "hook:custom-div", other );
+        otherBlock.setVariable( "title", "This is my first hook" );
+        assertEquals( goal, otherBlock.toString().replace( "\r\n", "\n" ) );
+        assertEquals( 1, other.calls );
+
+        NodeWriter writer = new NodeWriter();
+        writer.setTranslator( phrase -> phrase );
+        Block translated = tucker.buildBlock( "root" );
+        translated.bind( "hook:custom-div", hook );
+        translated.setVariable( "title", "This is my first hook" );
+        writer.render( translated );
+        assertEquals( 2, hook.calls );
+        assertEquals( 3, hook.getHookCache().getEntryCount() );
+
+        // Too small to keep anything.
+        hook = new CachedDiv( new HookCache( 10 ) );
+        for ( int i = 0; i < 2; i++ )
+        {
+            Block block = tucker.buildBlock( "root" );
+            block.bind( "hook:custom-div", hook );
+            block.setVariable( "title", "This is my first hook" );
+            assertEquals( goal, block.toString().replace( "\r\n", "\n" ) );
+        }
+        assertEquals( 2, hook.calls );
+    }
+
+    @Test
+    @DisplayName( "Async hook" )
+    public void testAsyncHook()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+        Block block = tucker.buildBlock( "root" );
+        CountDownLatch started = new CountDownLatch( 2 );
+        boolean[] overlapped = new boolean[2];
+        String[] selectors = { "li.hamburger-folder", "li.hamburger-item" };
+        for ( int i = 0; i < selectors.length; i++ )
+        {
+            int index = i;
+            block.bind( selectors[i], (AsyncHook) context -> {
+                started.countDown();
+                return CompletableFuture.supplyAsync( () -> {
+                    try
+                    {
+                        // Only both started if the first is not waited on before the second starts.
+                        overlapped[index] = started.await( 5, TimeUnit.SECONDS );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    Node node = new Node( Node.NodeType.tag );
+                    node.setTagName( "b" + index );
+                    return node;
+                } );
+            } );
+        }
+
+        String html = block.toString();
+        assertTrue( overlapped[0] && overlapped[1] );
+        assertTrue( html.indexOf( "<b0>" ) > 0 );
+        assertTrue( html.indexOf( "<b0>" ) < html.indexOf( "<b1>" ) );
+
+        // Never completes.
+        Block slow = tucker.buildBlock( "root" );
+        slow.bind( "h1", new AsyncHook()
+        {
+            @Override
+            public CompletableFuture<Node> doHookAsync( HookContext context )
+            {
+                return new CompletableFuture<>();
+            }
+
+            @Override
+            public long getTimeout()
+            {
+                return 50;
+            }
+        } );
+        assertThrows( RuntimeException.class, slow::toString );
+
+        // The hooks that were started along with the one that timed out are cancelled.
+        Block failing = tucker.buildBlock( "root" );
+        CompletableFuture<Node> other = new CompletableFuture<>();
+        failing.bind( "li.hamburger-folder", new AsyncHook()
+        {
+            @Override
+            public CompletableFuture<Node> doHookAsync( HookContext context )
+            {
+                return new CompletableFuture<>();
+            }
+
+            @Override
+            public long getTimeout()
+            {
+                return 50;
+            }
+        } );
+        failing.bind( "li.hamburger-item", (AsyncHook) context -> other );
+        assertThrows( RuntimeException.class, failing::toString );
+        assertTrue( other.isCancelled() );
+    }
+
+    @Test
+    @DisplayName( "Batch hook" )
+    public void testBatchHook()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "insert-in.thtml" ) );
+        List<List<String>> batches = new ArrayList<>();
+        tucker.registerCustomTag( "li", (BatchHook) contexts -> {
+            List<String> names = new ArrayList<>();
+            List<Node> nodes = new ArrayList<>();
+            for ( HookContext context : contexts )
+            {
+                names.add( context.getVariable( "name" ) );
+                Node node = new Node( Node.NodeType.tag );
+                node.setTagName( "b" );
+                nodes.add( node );
+            }
+            batches.add( names );
+            return nodes;
+        } );
+
+        Block block = tucker.buildBlock( "root" );
+        block.setVariable( "title", "Batch" );
+        for ( int i = 0; i < 5; i++ )
+        {
+            block.insert( "item", tucker.buildBlock( "item" ).setVariable( "name", "ITEM " + i ) );
+        }
+
+        String html = block.toString().replace( "\r\n", "\n" );
+        assertEquals( 1, batches.size() );
+        assertEquals( Arrays.asList( "ITEM 0", "ITEM 1", "ITEM 2", "ITEM 3", "ITEM 4" ), batches.get( 0 ) );
+        assertEquals( "<h1>Batch</h1>\n<ul>\n  <b></b>\n  <b></b>\n  <b></b>\n  <b></b>\n  <b></b>\n</ul>\n", html );
+
+        // The output of a streamed node is written before the next one is pulled, it is not kept for a later batch.
+        batches.clear();
+        block = tucker.buildBlock( "root" );
+        block.setVariable( "title", "Batch" );
+        StringBuilder builder = new StringBuilder();
+        List<Boolean> written = new ArrayList<>();
+        block.insert( "item", IntStream.range( 0, 3 ).iterator(), i -> {
+            written.add( builder.toString().contains( "<ul>" ) && builder.toString().split( "<b>", -1 ).length - 1 == i );
+            return tucker.buildBlock( "item" ).setVariable( "name", "ITEM " + i );
+        } );
+        block.render( new NodeWriter.PageContextStub(), builder );
+        assertEquals( Arrays.asList( true, true, true ), written );
+        assertEquals( 3, batches.size() );
+        assertEquals( "<h1>Batch</h1>\n<ul>\n  <b></b>\n  <b></b>\n  <b></b>\n</ul>\n", builder.toString().replace( "\r\n", "\n" ) );
+    }
+
+    @Test
+    @DisplayName( "Hook index" )
+    public void testHookIndex()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+        Block block = tucker.buildBlock( "root" );
+        block.setVariable( "one", "x" );
+        block.setVariable( "level", "2" );
+
+        Map<String, Integer> calls = new HashMap<>();
+        for ( String selector : Arrays.asList( "span", "li#nothing", "li.level-2.hamburger-folder", "li.hamburger-folder", "p.x",
+            "li.hamburger-item" ) )
+        {
+            block.bind( selector, context -> {
+                calls.merge( selector, 1, Integer::sum );
+                Node node = new Node( Node.NodeType.tag );
+                node.setTagName( "b" );
+                return node;
+            } );
+        }
+
+        String html = block.toString();
+        assertEquals( 2, (int) calls.get( "p.x" ) );
+        assertEquals( 1, (int) calls.get( "li.level-2.hamburger-folder" ) );
+        assertEquals( 1, (int) calls.get( "li.hamburger-item" ) );
+        assertFalse( calls.containsKey( "li.hamburger-folder" ) );
+        assertFalse( calls.containsKey( "li#nothing" ) );
+        assertFalse( html.contains( "<li" ) );
+        assertTrue( html.contains( "<h1>" ) );
+    }
+
+    @Test
+    @DisplayName( "Scope chain" )
+    public void testScopeChain()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "insert-in.thtml" ) );
+        Block block = tucker.buildBlock( "root" );
+        block.setVariable( "title", "Chain" );
+        block.setVariable( "style", "outer" );
+        block.insert( "item", tucker.buildBlock( "item" ).setVariable( "name", "A" ) );
+        block.insert( "item", tucker.buildBlock( "item" ).setVariable( "name", "B" ).setVariable( "style", "own" ) );
+
+        assertTrue( block.toString().contains( "<li>A</li>" ) );
+        block.getWriter().setInheritVariables( true );
+        String html = block.toString();
+        assertTrue( html.contains( "<li class=\"outer\">A</li>" ) );
+        assertTrue( html.contains( "<li class=\"own\">B</li>" ) );
+
+        // A copy shares the scopes but not the stack.
+        ScopeContext context = new ScopeContext();
+        context.setInheritVariables( true );
+        context.push( block.getScope() );
+        context.push( new Scope().setVariable( "name", "inner" ) );
+        ScopeContext copy = new ScopeContext( context );
+        copy.pop();
+        assertEquals( "inner", context.getVariable( "name" ) );
+        assertEquals( "outer", context.getVariable( "style" ) );
+        assertNull( copy.getVariable( "name" ) );
+        assertSame( block.getScope(), copy.peek() );
+    }
+
+    @Test
+    @DisplayName( "Compile" )
+    public void testCompile()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "shortcut-in.thtml" ) );
+        Block block = tucker.buildBlock( "root" );
+        assertNotNull( block.getPlan() );
+        assertSame( tucker.compile( "root" ), tucker.buildBlock( "root" ).getPlan() );
+
+        // Touching the structure directly must still be reflected in the output.
+        block.findByStyleClass( "strong" ).setAttribute( "class", "weak" );
+        assertNull( block.getPlan() );
+        assertTrue( block.toString().contains( "<p id=\"first-paragraph\" class=\"weak\">" ) );
+
+        // The shared structure itself is untouched.
+        assertTrue( tucker.buildBlock( "root" ).toString().contains( "<p id=\"first-paragraph\" class=\"strong\">" ) );
+    }
+
+    @Test
+    @DisplayName( "Stream" )
+    public void testStream()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "basic-in.thtml" ) );
+        Block block = tucker.buildBlock( "root" );
+
+        StringBuilder builder = new StringBuilder();
+        block.render( new NodeWriter.PageContextStub(), builder );
+        assertEquals( block.toString(), builder.toString() );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        block.render( new NodeWriter.PageContextStub(), bytes, StandardCharsets.UTF_8 );
+        assertEquals( block.toString(), bytes.toString( StandardCharsets.UTF_8 ) );
+
+        // Static chunks are pre-encoded, values are encoded while rendering.
+        tucker = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+        block = tucker.buildBlock( "root" );
+        block.setVariable( "title", "Caf\u00e9 \u20ac \ud83d\ude00" );
+        bytes.reset();
+        block.render( new NodeWriter.PageContextStub(), bytes );
+        assertArrayEquals( block.toString().getBytes( StandardCharsets.UTF_8 ), bytes.toByteArray() );
+
+        bytes.reset();
+        block.render( new NodeWriter.PageContextStub(), Channels.newChannel( bytes ) );
+        assertArrayEquals( block.toString().getBytes( StandardCharsets.UTF_8 ), bytes.toByteArray() );
+
+        // The first failed write stops the render, the rest of the rows are never built.
+        tucker = new Tucker( getClass().getResourceAsStream( "insert-in.thtml" ) );
+        block = tucker.buildBlock( "root" );
+        int[] built = new int[1];
+        Tucker rows = tucker;
+        block.insert( "item", IntStream.range( 0, 100 ).iterator(), i -> {
+            built[0]++;
+            return rows.buildBlock( "item" ).setVariable( "name", "ITEM " + i );
+        } );
+        Writer closed = new Writer()
+        {
+            @Override
+            public void write( char[] chars, int off, int len )
+                throws IOException
+            {
+                throw new IOException( "Connection reset" );
+            }
+
+            @Override
+            public void flush()
+            {
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+        Block failing = block;
+        IOException e = assertThrows( IOException.class, () -> failing.render( new NodeWriter.PageContextStub(), closed ) );
+        assertEquals( "Connection reset", e.getMessage() );
+        assertEquals( 0, built[0] );
+    }
+
+    @Test
+    @DisplayName( "OutputMode" )
+    public void testOutputMode()
+        throws IOException
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "shortcut-in.thtml" ) );
+        Block block = tucker.buildBlock( "root" );
+        block.getWriter().setOutputMode( NodeWriter.OutputMode.minified );
+        assertEquals( "<h1 id=header-1>My First Header</h1><p id=first-paragraph class=strong>My first paragraph.</p><ul>" +
+            "<li class=\"tile other large\">My first list item</li><li class=tile>My second list item</li>" +
+            "<li class=tile>My third list item</li></ul>", block.toString() );
+
+        // Without a plan the hardened tree is written the same way.
+        tucker = new Tucker( getClass().getResourceAsStream( "variable-in.thtml" ) );
+        String[] outputs = new String[2];
+        for ( int i = 0; i < outputs.length; i++ )
+        {
+            block = tucker.buildBlock( "root" );
+            block.setVariable( "title", "Spaced   value" );
+            block.setVariable( "level", "0" );
+            if ( i == 1 )
+            {
+                block.getChildren();
+            }
+            block.getWriter().setOutputMode( NodeWriter.OutputMode.compact );
+            outputs[i] = block.toString();
+        }
+        assertEquals( outputs[0], outputs[1] );
+        assertTrue( outputs[0].startsWith( "<h1>Spaced   value</h1><p" ) );
+    }
+
+    @Test
+    @DisplayName( "Template" )
+    public void testTemplate()
+        throws Exception
+    {
+        Tucker tucker = new Tucker( getClass().getResourceAsStream( "insert-in.thtml" ) );
+        Template root = tucker.getTemplate( "root" );
+        Template item = tucker.getTemplate( "item" );
+
+        String goal = new Scanner( getClass().getResourceAsStream( "insert-out.html" ) ).useDelimiter( "\\A" ).next().replace( "\r\n", "\n" );
+
+        // One Template shared by many threads, each with its own Blocks.
+        ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        List<Future<String>> futures = new ArrayList<>();
+        for ( int t = 0; t < 64; t++ )
+        {
+            futures.add( executor.submit( () -> {
+                Block block = root.newBlock();
+                block.setVariable( "title", "This is my first insert" );
+                for ( int i = 0; i < 5; i++ )
+                {
+                    Block row = item.newBlock();
+                    row.setVariable( "name", "ITEM " + i );
+                    if ( i == 3 )
+                    {
+                        row.setVariable( "style", "strong" );
+                    }
+                    block.insert( "item", row );
+                }
+
+                return block.toString().replace( "\r\n", "\n" );
+            } ) );
+        }
+
+        for ( Future<String> future : futures )
+        {
+            assertEquals( goal, future.get() );
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    @DisplayName( "Registry" )
+    public void testRegistry()
+        throws Exception
+    {
+        Path dir = Files.createTempDirectory( "tucker" );
+        Path file = dir.resolve( "page.thtml" );
+        Files.write( file, Arrays.asList( "== root", "p | first" ) );
+
+        try ( TemplateRegistry registry = new TemplateRegistry( 1 ).setCheckInterval( 0 ) )
+        {
+            Tucker first = registry.get( file );
+            assertSame( first, registry.get( file ) );
+            Block inFlight = first.getTemplate( "root" ).newBlock();
+
+            Files.write( file, Arrays.asList( "== root", "p | second" ) );
+            Files.setLastModifiedTime( file, FileTime.fromMillis( Files.getLastModifiedTime( file ).toMillis() + 1000 ) );
+            Tucker second = registry.get( file );
+            assertNotSame( first, second );
+            assertTrue( second.buildBlock( "root" ).toString().contains( "second" ) );
+            assertTrue( inFlight.toString().contains( "first" ) );
+
+            // Only the changed block is compiled again.
+            Files.write( file, Arrays.asList( "== root", "p | second", "== other", "p | other" ) );
+            Files.setLastModifiedTime( file, FileTime.fromMillis( Files.getLastModifiedTime( file ).toMillis() + 2000 ) );
+            Tucker third = registry.get( file );
+            assertSame( second.getTemplate( "root" ), third.getTemplate( "root" ) );
+            assertTrue( third.buildBlock( "other" ).toString().contains( "other" ) );
+
+            // A source that cannot be loaded keeps the last good version until it changes again.
+            Path binary = dir.resolve( "page.tbin" );
+            new TemplateCompiler().compile( Paths.get( getClass().getResource( "basic-in.thtml" ).toURI() ), binary );
+            registry.setCheckInterval( 60000 );
+            Tucker good = registry.get( binary );
+            Files.write( binary, Arrays.asList( "== root", "p | not binary" ) );
+            registry.invalidate( binary );
+            assertSame( good, registry.get( binary ) );
+            assertTrue( registry.getFailure( binary ) instanceof IOException );
+            assertSame( good, registry.get( binary ) );
+            new TemplateCompiler().compile( Paths.get( getClass().getResource( "basic-in.thtml" ).toURI() ), binary );
+            registry.invalidate( binary );
+            assertNotSame( good, registry.get( binary ) );
+            assertNull( registry.getFailure( binary ) );
+            Files.delete( binary );
+
+            // Templates in a jar are checked by the time of the jar.
+            Path jar = dir.resolve( "pages.jar" );
+            try ( JarOutputStream out = new JarOutputStream( Files.newOutputStream( jar ) ) )
+            {
+                out.putNextEntry( new JarEntry( "page.thtml" ) );
+                out.write( "== root\np | jarred\n".getBytes( StandardCharsets.UTF_8 ) );
+            }
+            URL jarred = new URL( "jar:" + jar.toUri() + "!/page.thtml" );
+            registry.setCheckInterval( 0 );
+            Tucker fromJar = registry.get( jarred );
+            assertSame( fromJar, registry.get( jarred ) );
+            assertTrue( fromJar.buildBlock( "root" ).toString().contains( "jarred" ) );
+            Files.delete( jar );
+
+            registry.getResource( "net/jextra/tucker/basic-in.thtml" );
+            assertEquals( 1, registry.size() );
+        }
+        finally
+        {
+            Files.delete( file );
+            Files.delete( dir );
+        }
+    }
+
     // ============================================================
     // Inner Classes
     // ============================================================
 
+    public static final class CachedDiv implements CachingHook
+    {
+        private HookCache cache;
+        private int calls;
+
+        public CachedDiv( HookCache cache )
+        {
+            this.cache = cache;
+        }
+
+        @Override
+        public Object getCacheKey( HookContext context )
+        {
+            return context.getNode().getTagName();
+        }
+
+        @Override
+        public HookCache getHookCache()
+        {
+            return cache;
+        }
+
+        @Override
+        public Node doHook( HookContext context )
+            throws IOException
+        {
+            calls++;
+            Tucker tucker = new Tucker( getClass().getResourceAsStream( "hook-in.thtml" ) );
+            return tucker.buildBlock( "custom-div" );
+        }
+    }
+
+    @HookTag( "hook:custom-div" )
     public static final class CustomDiv implements Hook
     {
         @Override
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker;
+
+import java.util.*;
+import java.util.regex.*;
+import net.jextra.tucker.tucker.*;
+
+/**
+ * Compares the single-pass NodeWriter.cleanString against the original regex implementation on attribute-heavy values. Not run as part
+ * of the tests:
+ * <pre>
+ *     mvn test-compile
+ *     java -cp target/classes:target/test-classes net.jextra.tucker.CleanStringBenchmark
+ * </pre>
+ */
+public class CleanStringBenchmark
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private static final int ITERATIONS = 200_000;
+
+    private NodeWriter writer;
+    private List<String> values;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    public CleanStringBenchmark()
+    {
+        Scope scope = new Scope();
+        scope.setVariable( "style", "strong" );
+        scope.setVariable( "level", "3" );
+        scope.setVariable( "id", "row-17" );
+        scope.setVariable( "name", "Item <17>" );
+        scope.setBoolean( "active" );
+
+        writer = new NodeWriter();
+        writer.getScopeContext().push( scope );
+
+        values = new ArrayList<>();
+        values.add( "hamburger-folder level-" + var( "level" ) + " " + var( "off" ) + " " + var( "style" ) + " " + bool( "active" ) );
+        values.add( var( "style" ) );
+        values.add( var( "missing" ) );
+        values.add( "  " + bool( "opened" ) + " " );
+        values.add( "row " + var( "id" ) + " col-" + var( "level" ) + " " + var( "id" ) + "-cell " + var( "style" ) );
+        values.add( "javascript:open('" + var( "id" ) + "', " + var( "level" ) + ")" );
+        values.add( "Name: " + var( "name" ) + " " + Tucker.LEFT_BRACE + "x" + Tucker.RIGHT_BRACE + " a < b" );
+        values.add( "plain-attribute-value" );
+        values.add( Tucker.PHRASE_START + "Hello " + var( "name" ) + Tucker.PHRASE_END );
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public static void main( String[] args )
+    {
+        new CleanStringBenchmark().run();
+    }
+
+    public void run()
+    {
+        for ( String value : values )
+        {
+            if ( !Objects.equals( regexCleanString( value ), writer.cleanString( value ) ) )
+            {
+                throw new IllegalStateException( "Mismatch for value: " + value );
+            }
+        }
+
+        // Warm up both before measuring.
+        measure( true, ITERATIONS );
+        measure( false, ITERATIONS );
+
+        long regexNanos = measure( false, ITERATIONS );
+        long scanNanos = measure( true, ITERATIONS );
+        long count = (long) ITERATIONS * values.size();
+        System.out.printf( "regex       %8.1f ns/value\n", (double) regexNanos / count );
+        System.out.printf( "single-pass %8.1f ns/value\n", (double) scanNanos / count );
+        System.out.printf( "speedup     %8.1fx\n", (double) regexNanos / scanNanos );
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private long measure( boolean scan, int iterations )
+    {
+        int sink = 0;
+        long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ )
+        {
+            for ( String value : values )
+            {
+                String clean = scan ? writer.cleanString( value ) : regexCleanString( value );
+                sink += clean == null ? 0 : clean.length();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        if ( sink == 42 )
+        {
+            System.out.println();
+        }
+
+        return nanos;
+    }
+
+    private static String var( String name )
+    {
+        return Tucker.VAR_START + name + Tucker.VAR_END;
+    }
+
+    private static String bool( String name )
+    {
+        return Tucker.BOOL_START + name + Tucker.BOOL_END;
+    }
+
+    /**
+     * The original implementation of NodeWriter.cleanString (without a translator).
+     */
+    private String regexCleanString( String value )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+
+        value = value.replace( Tucker.LEFT_BRACE, '{' );
+        value = value.replace( Tucker.RIGHT_BRACE, '}' );
+        value = value.replace( Tucker.BACK_TICK, '`' );
+        value = value.replace( "<", Tucker.LT );
+        value = value.replace( ">", Tucker.GT );
+
+        int varReplacedCount = 0;
+        int varNotSetCount = 0;
+        Pattern varPattern = Pattern.compile(
+            "([^" + Tucker.VAR_START + "]*)" + Tucker.VAR_START + "([^" + Tucker.VAR_END + "]*)" + Tucker.VAR_END + "(.*)" );
+        for ( Matcher m = varPattern.matcher( value ); m.matches(); m = varPattern.matcher( value ) )
+        {
+            String varValue = writer.getScopeContext().getVariable( m.group( 2 ) );
+            if ( varValue != null )
+            {
+                varReplacedCount++;
+                value = m.group( 1 ) + varValue + m.group( 3 );
+            }
+            else
+            {
+                varNotSetCount++;
+                value = m.group( 1 ) + m.group( 3 );
+            }
+        }
+
+        Pattern boolPattern = Pattern.compile(
+            "([^" + Tucker.BOOL_START + "]*)" + Tucker.BOOL_START + "([^" + Tucker.BOOL_END + "]*)" + Tucker.BOOL_END + "(.*)" );
+        for ( Matcher m = boolPattern.matcher( value ); m.matches(); m = boolPattern.matcher( value ) )
+        {
+            String var = m.group( 2 );
+            if ( writer.getScopeContext().getBoolean( var ) )
+            {
+                varReplacedCount++;
+                value = m.group( 1 ) + var + m.group( 3 );
+            }
+            else
+            {
+                varNotSetCount++;
+                value = m.group( 1 ) + m.group( 3 );
+            }
+        }
+
+        value = value.replaceAll( "" + Tucker.PHRASE_START, "" );
+        value = value.replaceAll( "" + Tucker.PHRASE_END, "" );
+
+        if ( varReplacedCount == 0 && varNotSetCount == 1 && value.trim().isEmpty() )
+        {
+            return null;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) jextra.net.
+ *
+ * This file is part of the jextra.net software.
+ *
+ * The jextra software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * The jextra software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with the jextra software; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA.
+ */
+
+package net.jextra.tucker;
+
+import java.io.*;
+import java.util.*;
+import net.jextra.tucker.tucker.*;
+
+/**
+ * Measures the heap retained per parsed node, both when every copy of a template comes from its own parser and when one parser holds
+ * all the copies (so tag names, class values and class names are shared through its interner). Not run as part of the tests:
+ * <pre>
+ *     mvn test-compile
+ *     java -cp target/classes:target/test-classes net.jextra.tucker.NodeFootprintBenchmark
+ * </pre>
+ */
+public class NodeFootprintBenchmark
+{
+    // ============================================================
+    // Fields
+    // ============================================================
+
+    private static final int COPIES = 2_000;
+    private static final int ROWS = 80;
+
+    private String body;
+    private int nodesPerCopy;
+
+    // ============================================================
+    // Constructors
+    // ============================================================
+
+    public NodeFootprintBenchmark()
+    {
+        StringBuilder text = new StringBuilder();
+        text.append( "div.page.container\n" );
+        text.append( "    table.grid.striped\n" );
+        nodesPerCopy = 2;
+        for ( int i = 0; i < ROWS; i++ )
+        {
+            text.append( "        tr.row.row-" ).append( i % 4 ).append( "\n" );
+            text.append( "            td.cell.col-name | Name " ).append( i ).append( "\n" );
+            text.append( "            td.cell.col-value.number | " ).append( i * 7 ).append( "\n" );
+            text.append( "            td.cell.actions\n" );
+            text.append( "                a.btn.btn-primary href=\"#\" | Edit\n" );
+            text.append( "                a.btn.btn-danger href=\"#\" | Delete\n" );
+            nodesPerCopy += 6;
+        }
+        body = text.toString();
+    }
+
+    // ============================================================
+    // Methods
+    // ============================================================
+
+    // ----------
+    // public
+    // ----------
+
+    public static void main( String[] args )
+        throws IOException
+    {
+        new NodeFootprintBenchmark().run();
+    }
+
+    public void run()
+        throws IOException
+    {
+        // Warm up the parser before measuring.
+        parseSeparately( 50 );
+        parseTogether( 50 );
+
+        long separate = measure( false );
+        long shared = measure( true );
+        System.out.printf( "nodes/copy        %8d\n", nodesPerCopy );
+        System.out.printf( "separate parsers  %8.1f bytes/node\n", (double) separate / ( (long) COPIES * nodesPerCopy ) );
+        System.out.printf( "one parser        %8.1f bytes/node\n", (double) shared / ( (long) COPIES * nodesPerCopy ) );
+    }
+
+    // ----------
+    // private
+    // ----------
+
+    private long measure( boolean together )
+        throws IOException
+    {
+        long before = usedHeap();
+        List<Template> templates = together ? parseTogether( COPIES ) : parseSeparately( COPIES );
+        long after = usedHeap();
+        if ( templates.size() != COPIES )
+        {
+            throw new IllegalStateException( "Expected " + COPIES + " templates but parsed " + templates.size() );
+        }
+
+        return after - before;
+    }
+
+    private List<Template> parseSeparately( int copies )
+        throws IOException
+    {
+        List<Template> templates = new ArrayList<>();
+        for ( int i = 0; i < copies; i++ )
+        {
+            TuckerParser parser = new TuckerParser();
+            parser.parse( "== page\n" + body );
+            templates.add( parser.getTemplate( "page" ) );
+        }
+
+        return templates;
+    }
+
+    private List<Template> parseTogether( int copies )
+        throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for ( int i = 0; i < copies; i++ )
+        {
+            text.append( "== page" ).append( i ).append( "\n" ).append( body );
+        }
+        TuckerParser parser = new TuckerParser();
+        parser.parse( text );
+        List<Template> templates = new ArrayList<>();
+        for ( int i = 0; i < copies; i++ )
+        {
+            templates.add( parser.getTemplate( "page" + i ) );
+        }
+
+        return templates;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0; i < 5; i++ )
+        {
+            System.gc();
+            try
+            {
+                Thread.sleep( 50 );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}